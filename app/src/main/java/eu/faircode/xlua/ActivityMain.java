@@ -67,6 +67,8 @@ public class ActivityMain extends AppCompatActivity {
     private AlertDialog firstRunDialog = null;
 
     public static final int LOADER_DATA = 1;
+    public static final int LOADER_UPDATE = 2;
+    public static final int LOADER_PAGE = 3;
     public static final String EXTRA_SEARCH_PACKAGE = "package";
 
     @Override
@@ -290,6 +292,10 @@ public class ActivityMain extends AppCompatActivity {
                 menuHelp();
                 return true;
 
+            case R.id.menu_stats:
+                menuStats();
+                return true;
+
             default:
                 return super.onOptionsItemSelected(item);
         }
@@ -299,6 +305,10 @@ public class ActivityMain extends AppCompatActivity {
         startActivity(new Intent(this, ActivityHelp.class));
     }
 
+    private void menuStats() {
+        startActivity(new Intent(this, ActivityStats.class));
+    }
+
     public void updateMenu() {
         // Search
         if (searchView != null) {
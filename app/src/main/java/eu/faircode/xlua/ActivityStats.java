@@ -0,0 +1,145 @@
+/*
+    This file is part of XPrivacyLua.
+
+    XPrivacyLua is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    XPrivacyLua is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with XPrivacyLua.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2017-2018 Marcel Bokhorst (M66B)
+ */
+
+package eu.faircode.xlua;
+
+import android.os.Bundle;
+import android.support.v4.app.NavUtils;
+import android.support.v7.app.AppCompatActivity;
+import android.util.Log;
+import android.view.MenuItem;
+import android.widget.TextView;
+
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class ActivityStats extends AppCompatActivity {
+    private static final String TAG = "XLua.Stats";
+
+    private TextView tvStats;
+    private ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.stats);
+
+        getSupportActionBar().setTitle(R.string.menu_stats);
+        getSupportActionBar().setDisplayHomeAsUpEnabled(true);
+
+        tvStats = findViewById(R.id.tvStats);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                String text;
+                try {
+                    Bundle stats = getContentResolver()
+                            .call(XProvider.URI, "xlua", "getStats", new Bundle());
+                    text = format(stats);
+                } catch (Throwable ex) {
+                    Log.e(TAG, Log.getStackTraceString(ex));
+                    text = ex.toString();
+                }
+
+                final String result = text;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        tvStats.setText(result);
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    protected void onDestroy() {
+        executor.shutdownNow();
+        super.onDestroy();
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        Log.i(TAG, "Selected option " + item.getTitle());
+        switch (item.getItemId()) {
+            case android.R.id.home:
+                NavUtils.navigateUpFromSameTask(this);
+                return true;
+
+            default:
+                return super.onOptionsItemSelected(item);
+        }
+    }
+
+    // Latencies are in milliseconds, percentiles are the upper bound of the bucket they fall in
+    private static String format(Bundle stats) {
+        long[] bounds = stats.getLongArray("bounds");
+        String[] methods = stats.getStringArray("methods");
+        long[] calls = stats.getLongArray("calls");
+        long[] errors = stats.getLongArray("errors");
+        long[] elapsed = stats.getLongArray("elapsed");
+        long[] max = stats.getLongArray("max");
+        long[] payload = stats.getLongArray("payload");
+        long[] histogram = stats.getLongArray("histogram");
+        String[] counters = stats.getStringArray("counters");
+        long[] values = stats.getLongArray("values");
+        int buckets = bounds.length + 1;
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT, "uptime %d s\n\n", stats.getLong("uptime") / 1000));
+
+        sb.append(String.format(Locale.ROOT, "%-24s %8s %6s %8s %8s %6s %6s %6s %10s\n",
+                "method", "calls", "errors", "avg", "max", "p50", "p90", "p99", "payload"));
+        for (int i = 0; i < methods.length; i++) {
+            long n = Math.max(calls[i], 1);
+            sb.append(String.format(Locale.ROOT, "%-24s %8d %6d %8.2f %8.2f %6s %6s %6s %10d\n",
+                    methods[i], calls[i], errors[i],
+                    elapsed[i] / 1000.0 / n, max[i] / 1000.0,
+                    getPercentile(histogram, i * buckets, bounds, calls[i], 0.50),
+                    getPercentile(histogram, i * buckets, bounds, calls[i], 0.90),
+                    getPercentile(histogram, i * buckets, bounds, calls[i], 0.99),
+                    payload[i] / n));
+        }
+        sb.append("payload: estimated bytes per call, rows per query\n\n");
+
+        for (int c = 0; c < counters.length; c++)
+            sb.append(String.format(Locale.ROOT, "%-32s %12d\n", counters[c], values[c]));
+
+        return sb.toString();
+    }
+
+    private static String getPercentile(long[] histogram, int offset, long[] bounds, long calls, double q) {
+        if (calls == 0)
+            return "-";
+        long seen = 0;
+        for (int b = 0; b < bounds.length; b++) {
+            seen += histogram[offset + b];
+            if (seen >= q * calls)
+                return "<=" + bounds[b];
+        }
+        return ">" + bounds[bounds.length - 1];
+    }
+}
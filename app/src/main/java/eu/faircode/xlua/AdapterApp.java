@@ -46,6 +46,7 @@ import android.widget.TextView;
 
 import java.text.Collator;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -245,6 +246,53 @@ public class AdapterApp extends RecyclerView.Adapter<AdapterApp.ViewHolder> impl
         this.query = query;
         this.newHooks = hooks;
 
+        sort(apps);
+
+        all.clear();
+        all.addAll(apps);
+
+        getFilter().filter(query);
+    }
+
+    void update(List<XApp> apps) {
+        Log.i(TAG, "Update apps=" + apps.size());
+
+        boolean added = false;
+        for (XApp app : apps) {
+            int index = -1;
+            for (int i = 0; i < all.size(); i++)
+                if (all.get(i).packageName.equals(app.packageName) && all.get(i).uid == app.uid) {
+                    index = i;
+                    break;
+                }
+
+            if (index < 0) {
+                all.add(app);
+                added = true;
+            } else
+                all.set(index, app);
+        }
+
+        if (added)
+            sort(all);
+
+        getFilter().filter(query);
+    }
+
+    void remove(String[] keys) {
+        if (keys == null || keys.length == 0)
+            return;
+        Log.i(TAG, "Remove apps=" + keys.length);
+
+        List<String> removed = Arrays.asList(keys);
+        for (XApp app : new ArrayList<>(all))
+            if (removed.contains(app.packageName + ":" + app.uid))
+                all.remove(app);
+
+        getFilter().filter(query);
+    }
+
+    private static void sort(List<XApp> apps) {
         final Collator collator = Collator.getInstance(Locale.getDefault());
         collator.setStrength(Collator.SECONDARY); // Case insensitive, process accents etc
 
@@ -254,11 +302,6 @@ public class AdapterApp extends RecyclerView.Adapter<AdapterApp.ViewHolder> impl
                 return collator.compare(app1.label, app2.label);
             }
         });
-
-        all.clear();
-        all.addAll(apps);
-
-        getFilter().filter(query);
     }
 
     void setShowAll(boolean value) {
@@ -383,7 +426,9 @@ public class AdapterApp extends RecyclerView.Adapter<AdapterApp.ViewHolder> impl
                 XAssignment a2 = app2.assignments.get(i2);
                 if (a1.installed != a2.installed ||
                         a1.used != a2.used ||
-                        a1.restricted != a2.restricted)
+                        a1.restricted != a2.restricted ||
+                        a1.calls != a2.calls ||
+                        a1.restrictions != a2.restrictions)
                     return false;
             }
 
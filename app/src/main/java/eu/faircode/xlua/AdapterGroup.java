@@ -135,19 +135,17 @@ public class AdapterGroup extends RecyclerView.Adapter<AdapterGroup.ViewHolder>
                     executor.submit(new Runnable() {
                         @Override
                         public void run() {
-                            // TODO: set/clear group API
-                            ArrayList<String> hookids = new ArrayList<>();
-                            for (XHook hook : group.hooks)
-                                hookids.add(hook.getId());
+                            ArrayList<String> selected = new ArrayList<>();
+                            selected.add(group.name);
 
                             Bundle args = new Bundle();
-                            args.putStringArrayList("hooks", hookids);
-                            args.putString("packageName", app.packageName);
-                            args.putInt("uid", app.uid);
+                            args.putStringArrayList("groups", selected);
+                            args.putStringArray("packageNames", new String[]{app.packageName});
+                            args.putIntArray("uids", new int[]{app.uid});
+                            args.putBooleanArray("kills", new boolean[]{!app.persistent});
                             args.putBoolean("delete", !checked);
-                            args.putBoolean("kill", !app.persistent);
                             compoundButton.getContext().getContentResolver()
-                                    .call(XProvider.URI, "xlua", "assignHooks", args);
+                                    .call(XProvider.URI, "xlua", "assignBulk", args);
                         }
                     });
                     break;
@@ -193,6 +191,8 @@ public class AdapterGroup extends RecyclerView.Adapter<AdapterGroup.ViewHolder>
                         group.optional++;
                     if (assignment.restricted)
                         group.used = Math.max(group.used, assignment.used);
+                    group.calls += assignment.calls;
+                    group.restrictions += assignment.restrictions;
                     group.assigned++;
                 }
         }
@@ -238,9 +238,12 @@ public class AdapterGroup extends RecyclerView.Adapter<AdapterGroup.ViewHolder>
         holder.ivException.setVisibility(group.hasException() ? View.VISIBLE : View.GONE);
         holder.ivInstalled.setVisibility(group.hasInstalled() ? View.VISIBLE : View.GONE);
         holder.ivInstalled.setAlpha(group.allInstalled() ? 1.0f : 0.5f);
-        holder.tvUsed.setVisibility(group.lastUsed() < 0 ? View.GONE : View.VISIBLE);
-        holder.tvUsed.setText(DateUtils.formatDateTime(context, group.lastUsed(),
+        String used = (group.lastUsed() < 0 ? null : DateUtils.formatDateTime(context, group.lastUsed(),
                 DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_TIME | DateUtils.FORMAT_ABBREV_ALL));
+        String rate = (group.calls > 0
+                ? context.getString(R.string.title_usage_rate, group.restrictions, group.calls) : null);
+        holder.tvUsed.setVisibility(used == null && rate == null ? View.GONE : View.VISIBLE);
+        holder.tvUsed.setText(used == null ? rate : (rate == null ? used : used + " " + rate));
         holder.tvGroup.setText(group.title);
         holder.cbAssigned.setChecked(group.hasAssigned());
         holder.cbAssigned.setButtonTintList(ColorStateList.valueOf(resources.getColor(
@@ -257,6 +260,8 @@ public class AdapterGroup extends RecyclerView.Adapter<AdapterGroup.ViewHolder>
         int installed = 0;
         int optional = 0;
         long used = -1;
+        long calls = 0;
+        long restrictions = 0;
         int assigned = 0;
         List<XHook> hooks = new ArrayList<>();
 
@@ -49,12 +49,16 @@ import java.text.Collator;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 public class FragmentMain extends Fragment {
     private final static String TAG = "XLua.Main";
 
+    private final static int cPageSize = 50; // apps
+
     private boolean showAll = false;
     private String query = null;
     private ProgressBar pbApplication;
@@ -63,6 +67,8 @@ public class FragmentMain extends Fragment {
     private RecyclerView rvApplication;
     private Group grpApplication;
     private AdapterApp rvAdapter;
+    private Map<String, Integer> updating = new LinkedHashMap<>();
+    private long generation = -1;
 
     @Override
     @Nullable
@@ -133,7 +139,11 @@ public class FragmentMain extends Fragment {
         ifPackage.addDataScheme("package");
         getContext().registerReceiver(packageChangedReceiver, ifPackage);
 
-        loadData();
+        // Only fetch apps changed since the last load
+        if (generation < 0)
+            loadData();
+        else
+            loadPage(0, generation);
     }
 
     @Override
@@ -163,26 +173,98 @@ public class FragmentMain extends Fragment {
         Log.i(TAG, "Starting data loader group=" + group);
         Bundle args = new Bundle();
         args.putString("group", group);
+        getActivity().getSupportLoaderManager().destroyLoader(ActivityMain.LOADER_PAGE);
         getActivity().getSupportLoaderManager().restartLoader(
                 ActivityMain.LOADER_DATA, args, dataLoaderCallbacks).forceLoad();
     }
 
+    private void loadPage(int offset, long since) {
+        XGroup selected = (XGroup) spGroup.getSelectedItem();
+        String group = (selected == null ? null : selected.name);
+
+        Log.i(TAG, "Starting page loader group=" + group + " offset=" + offset + " since=" + since);
+        Bundle args = new Bundle();
+        args.putString("group", group);
+        args.putInt("offset", offset);
+        args.putLong("since", since);
+        getActivity().getSupportLoaderManager().restartLoader(
+                ActivityMain.LOADER_PAGE, args, dataLoaderCallbacks).forceLoad();
+    }
+
+    private void updateData() {
+        XGroup selected = (XGroup) spGroup.getSelectedItem();
+        String group = (selected == null ? null : selected.name);
+
+        // Pending apps stay pending until an update loader delivers them
+        ArrayList<String> selection = new ArrayList<>();
+        for (String key : updating.keySet()) {
+            selection.add(key.substring(0, key.lastIndexOf(':')));
+            selection.add(Integer.toString(updating.get(key)));
+        }
+
+        Log.i(TAG, "Starting update loader group=" + group + " apps=" + updating.size());
+        Bundle args = new Bundle();
+        args.putString("group", group);
+        args.putStringArrayList("selection", selection);
+        getActivity().getSupportLoaderManager().restartLoader(
+                ActivityMain.LOADER_UPDATE, args, dataLoaderCallbacks).forceLoad();
+    }
+
     LoaderManager.LoaderCallbacks dataLoaderCallbacks = new LoaderManager.LoaderCallbacks<DataHolder>() {
         @Override
         public Loader<DataHolder> onCreateLoader(int id, Bundle args) {
             DataLoader loader = new DataLoader(getContext());
-            loader.setData(args.getString("group"));
+            loader.setData(args.getString("group"), args.getStringArrayList("selection"));
+            loader.setPage(args.getInt("offset", -1), args.getLong("since", -1));
             return loader;
         }
 
         @Override
         public void onLoadFinished(Loader<DataHolder> loader, DataHolder data) {
-            if (data.exception == null) {
+            if (data.selection != null) {
+                List<String> removed = new ArrayList<>();
+                for (int i = 0; i < data.selection.size(); i += 2) {
+                    String key = data.selection.get(i) + ":" + data.selection.get(i + 1);
+                    updating.remove(key);
+                    removed.add(key);
+                }
+                if (data.exception == null) {
+                    // Selected apps which were not returned are not installed anymore
+                    for (XApp app : data.apps)
+                        removed.remove(app.packageName + ":" + app.uid);
+                    rvAdapter.update(data.apps);
+                    rvAdapter.remove(removed.toArray(new String[0]));
+                } else
+                    Log.e(TAG, Log.getStackTraceString(data.exception));
+            } else if (data.page) {
+                XGroup selected = (XGroup) spGroup.getSelectedItem();
+                String group = (selected == null ? null : selected.name);
+                if (group == null ? data.group != null : !group.equals(data.group))
+                    return;
+
+                if (data.exception != null)
+                    Log.e(TAG, Log.getStackTraceString(data.exception));
+                else if (data.full && data.since >= 0)
+                    loadData();
+                else {
+                    rvAdapter.update(data.apps);
+                    rvAdapter.remove(data.removed);
+                    if (data.offset == 0)
+                        generation = data.generation;
+                    if (data.offset + cPageSize < data.total)
+                        loadPage(data.offset + cPageSize, data.since);
+                }
+            } else if (data.exception == null) {
                 if (spAdapter.getCount() == 0)
                     spAdapter.addAll(data.groups);
                 rvAdapter.set(showAll, query, data.hooks, data.apps);
                 pbApplication.setVisibility(View.GONE);
                 grpApplication.setVisibility(View.VISIBLE);
+
+                // Remaining apps are delivered page by page
+                generation = data.generation;
+                if (data.generation >= 0 && cPageSize < data.total)
+                    loadPage(cPageSize, -1);
             } else {
                 Log.e(TAG, Log.getStackTraceString(data.exception));
                 Snackbar.make(getView(), data.exception.toString(), Snackbar.LENGTH_LONG).show();
@@ -197,19 +279,33 @@ public class FragmentMain extends Fragment {
 
     private static class DataLoader extends AsyncTaskLoader<DataHolder> {
         private String group;
+        private ArrayList<String> selection;
+        private int offset = -1;
+        private long since = -1;
 
         DataLoader(Context context) {
             super(context);
             setUpdateThrottle(1000);
         }
 
-        void setData(String group) {
+        void setData(String group, ArrayList<String> selection) {
             this.group = group;
+            this.selection = selection;
+        }
+
+        void setPage(int offset, long since) {
+            this.offset = offset;
+            this.since = since;
         }
 
         @Nullable
         @Override
         public DataHolder loadInBackground() {
+            if (selection != null)
+                return loadApps();
+            if (offset >= 0)
+                return loadPage();
+
             Log.i(TAG, "Data loader started");
             DataHolder data = new DataHolder();
             try {
@@ -259,9 +355,13 @@ public class FragmentMain extends Fragment {
                 Cursor chooks = null;
                 try {
                     chooks = getContext().getContentResolver()
-                            .query(XProvider.URI, new String[]{"xlua.getHooks"}, null, null, null);
+                            .query(XProvider.URI, new String[]{"xlua.getHooks", XBinary.cColumn}, null, null, null);
+                    boolean binary = XBinary.isBinary(chooks);
+                    XBinary.Reader reader = new XBinary.Reader();
                     while (chooks != null && chooks.moveToNext()) {
-                        XHook hook = XHook.fromJSON(chooks.getString(0));
+                        XHook hook = (binary
+                                ? XHook.fromBinary(reader.row(chooks.getBlob(0)))
+                                : XHook.fromJSON(chooks.getString(0)));
                         if (group == null || group.equals(hook.getGroup()))
                             data.hooks.add(hook);
                     }
@@ -270,23 +370,9 @@ public class FragmentMain extends Fragment {
                         chooks.close();
                 }
 
-                // Load apps
-                Cursor capps = null;
-                try {
-                    capps = getContext().getContentResolver()
-                            .query(XProvider.URI, new String[]{"xlua.getApps"}, null, null, null);
-                    while (capps != null && capps.moveToNext()) {
-                        XApp app = XApp.fromJSON(capps.getString(0));
-                        if (group != null)
-                            for (XAssignment assignment : new ArrayList<>(app.assignments))
-                                if (!group.equals(assignment.hook.getGroup()))
-                                    app.assignments.remove(assignment);
-                        data.apps.add(app);
-                    }
-                } finally {
-                    if (capps != null)
-                        capps.close();
-                }
+                // Load first page of apps
+                if (!queryPage(data, 0, -1))
+                    queryApps(data, null); // Older provider
             } catch (Throwable ex) {
                 data.hooks.clear();
                 data.apps.clear();
@@ -297,13 +383,109 @@ public class FragmentMain extends Fragment {
                     " hooks=" + data.hooks.size() + " apps=" + data.apps.size());
             return data;
         }
+
+        private DataHolder loadApps() {
+            Log.i(TAG, "Update loader started");
+            DataHolder data = new DataHolder();
+            data.selection = selection;
+            try {
+                queryApps(data, selection.toArray(new String[0]));
+            } catch (Throwable ex) {
+                data.apps.clear();
+                data.exception = ex;
+            }
+
+            Log.i(TAG, "Update loader finished apps=" + data.apps.size());
+            return data;
+        }
+
+        private DataHolder loadPage() {
+            Log.i(TAG, "Page loader started offset=" + offset + " since=" + since);
+            DataHolder data = new DataHolder();
+            try {
+                // Older providers do not page, fall back to a full load
+                data.page = true;
+                data.group = group;
+                data.since = since;
+                if (!queryPage(data, offset, since))
+                    data.full = true;
+            } catch (Throwable ex) {
+                data.apps.clear();
+                data.exception = ex;
+            }
+
+            Log.i(TAG, "Page loader finished apps=" + data.apps.size() + " total=" + data.total);
+            return data;
+        }
+
+        // Returns false when the provider does not support paging
+        // Results are only marked as page by the page loader, the first page is part of the full load
+        private boolean queryPage(DataHolder data, int offset, long since) throws Throwable {
+            Cursor capps = null;
+            try {
+                capps = getContext().getContentResolver()
+                        .query(XProvider.URI, new String[]{"xlua.getAppPage", XBinary.cColumn}, null,
+                                new String[]{Integer.toString(offset), Integer.toString(cPageSize), Long.toString(since)},
+                                null);
+                if (capps == null)
+                    return false;
+
+                Bundle extras = capps.getExtras();
+                data.offset = offset;
+                data.generation = extras.getLong("generation", -1);
+                data.total = extras.getInt("total");
+                data.removed = extras.getStringArray("removed");
+                data.full = extras.getBoolean("full");
+                readApps(capps, data);
+                return true;
+            } finally {
+                if (capps != null)
+                    capps.close();
+            }
+        }
+
+        // All apps or the apps selected by package name and uid pairs
+        private void queryApps(DataHolder data, String[] selection) throws Throwable {
+            Cursor capps = null;
+            try {
+                capps = getContext().getContentResolver()
+                        .query(XProvider.URI, new String[]{"xlua.getApps", XBinary.cColumn}, null, selection, null);
+                readApps(capps, data);
+            } finally {
+                if (capps != null)
+                    capps.close();
+            }
+        }
+
+        private void readApps(Cursor capps, DataHolder data) throws Throwable {
+            boolean binary = XBinary.isBinary(capps);
+            XBinary.Reader reader = new XBinary.Reader();
+            while (capps != null && capps.moveToNext()) {
+                XApp app = (binary
+                        ? XApp.fromBinary(reader.row(capps.getBlob(0)))
+                        : XApp.fromJSON(capps.getString(0)));
+                if (group != null)
+                    for (XAssignment assignment : new ArrayList<>(app.assignments))
+                        if (!group.equals(assignment.hook.getGroup()))
+                            app.assignments.remove(assignment);
+                data.apps.add(app);
+            }
+        }
     }
 
     private BroadcastReceiver dataChangedReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
             Log.i(TAG, "Received " + intent);
-            loadData();
+            String[] packageNames = intent.getStringArrayExtra("packageNames");
+            int[] uids = intent.getIntArrayExtra("uids");
+            if (packageNames == null || uids == null || packageNames.length != uids.length)
+                loadData();
+            else {
+                for (int i = 0; i < packageNames.length; i++)
+                    updating.put(packageNames[i] + ":" + uids[i], uids[i]);
+                updateData();
+            }
         }
     };
 
@@ -316,6 +498,15 @@ public class FragmentMain extends Fragment {
     };
 
     private static class DataHolder {
+        ArrayList<String> selection = null;
+        boolean page = false;
+        String group = null;
+        int offset = 0;
+        long since = -1;
+        long generation = -1;
+        int total = 0;
+        boolean full = false;
+        String[] removed = null;
         List<XGroup> groups = new ArrayList<>();
         List<XHook> hooks = new ArrayList<>();
         List<XApp> apps = new ArrayList<>();
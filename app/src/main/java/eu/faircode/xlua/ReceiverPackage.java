@@ -28,6 +28,18 @@ public class ReceiverPackage extends BroadcastReceiver {
             String self = Xposed.class.getPackage().getName();
             Context ctx = Util.createContextForUser(context, userid);
 
+            // Update installed app cache of the provider, a failure should not skip initializing the app
+            try {
+                Bundle pargs = new Bundle();
+                pargs.putString("packageName", packageName);
+                pargs.putInt("uid", uid);
+                context.getContentResolver()
+                        .call(XProvider.URI, "xlua", "packageChanged", pargs);
+            } catch (Throwable ex) {
+                Log.e(TAG, Log.getStackTraceString(ex));
+                XposedBridge.log(ex);
+            }
+
             if (Intent.ACTION_PACKAGE_ADDED.equals(intent.getAction())) {
                 if (!replacing && !self.equals(packageName) && !Util.PRO_PACKAGE_NAME.equals(packageName)) {
                     // Initialize app
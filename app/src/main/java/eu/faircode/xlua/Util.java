@@ -34,10 +34,13 @@ import android.content.res.Resources;
 import android.os.Build;
 import android.os.Process;
 import android.os.UserHandle;
+import android.os.UserManager;
 import android.util.Log;
 
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
+import java.util.HashSet;
+import java.util.Set;
 
 class Util {
     private final static String TAG = "XLua.Util";
@@ -45,6 +48,8 @@ class Util {
     static final String PRO_PACKAGE_NAME = "eu.faircode.xlua.pro";
     private static final int PER_USER_RANGE = 100000;
 
+    private static final Set<Integer> channels = new HashSet<>();
+
     static String getSelfVersionName(Context context) {
         try {
             PackageInfo pi = context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
@@ -109,6 +114,16 @@ class Util {
         }
     }
 
+    // Users which do not exist have no serial number
+    static boolean hasUser(Context context, int userid) {
+        if (userid == 0)
+            return true;
+        if (userid < 0)
+            return false;
+        UserManager um = context.getSystemService(UserManager.class);
+        return (um != null && um.getSerialNumberForUser(getUserHandle(userid)) >= 0);
+    }
+
     static Context createContextForUser(Context context, int userid) throws Throwable {
         // public UserHandle(int h)
         Class<?> clsUH = Class.forName("android.os.UserHandle");
@@ -123,8 +138,8 @@ class Util {
     static void notifyAsUser(Context context, String tag, int id, Notification notification, int userid) throws Throwable {
         NotificationManager nm = context.getSystemService(NotificationManager.class);
 
-        // Create notification channel
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+        // Create notification channel once per user
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && !hasChannel(userid)) {
             PackageManager pm = context.getPackageManager();
             String self = Util.class.getPackage().getName();
             Resources resources = pm.getResourcesForApplication(self);
@@ -132,6 +147,11 @@ class Util {
                     XProvider.cChannelName, resources.getString(R.string.channel_privacy), NotificationManager.IMPORTANCE_HIGH);
             channel.setSound(null, Notification.AUDIO_ATTRIBUTES_DEFAULT);
             nm.createNotificationChannel(channel);
+
+            // Mark only after success, so that a failure is retried with the next notification
+            synchronized (channels) {
+                channels.add(userid);
+            }
         }
 
         // public void notifyAsUser(String tag, int id, Notification notification, UserHandle user)
@@ -141,6 +161,12 @@ class Util {
         Log.i(TAG, "Notified " + tag + ":" + id + " as " + userid);
     }
 
+    private static boolean hasChannel(int userid) {
+        synchronized (channels) {
+            return channels.contains(userid);
+        }
+    }
+
     static void cancelAsUser(Context context, String tag, int id, int userid) throws Throwable {
         NotificationManager nm = context.getSystemService(NotificationManager.class);
 
@@ -85,6 +85,39 @@ class XApp {
         return app;
     }
 
+    void toBinary(XBinary.Writer out) {
+        out.writeString(this.packageName);
+        out.writeInt(this.uid);
+        out.writeInt(this.icon);
+        out.writeString(this.label);
+        out.writeBoolean(this.enabled);
+        out.writeBoolean(this.persistent);
+        out.writeBoolean(this.system);
+
+        out.writeInt(this.assignments.size());
+        for (XAssignment assignment : this.assignments)
+            assignment.toBinary(out);
+    }
+
+    static XApp fromBinary(XBinary.Reader in) {
+        XApp app = new XApp();
+
+        app.packageName = in.readString();
+        app.uid = in.readInt();
+        app.icon = in.readInt();
+        app.label = in.readString();
+        app.enabled = in.readBoolean();
+        app.persistent = in.readBoolean();
+        app.system = in.readBoolean();
+
+        int count = in.readInt();
+        app.assignments = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            app.assignments.add(XAssignment.fromBinary(in));
+
+        return app;
+    }
+
     private IListener listener = null;
 
     void setListener(IListener listener) {
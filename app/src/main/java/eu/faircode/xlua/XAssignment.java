@@ -9,6 +9,11 @@ class XAssignment {
     long used = -1;
     boolean restricted = false;
     String exception;
+    long calls = 0;
+    long restrictions = 0;
+    long errors = 0;
+    long duration = 0;
+    long durationMax = 0;
 
     private XAssignment() {
     }
@@ -21,6 +26,7 @@ class XAssignment {
         return toJSONObject().toString(2);
     }
 
+    // JSON rows are read by older clients too, so each row includes its hook
     JSONObject toJSONObject() throws JSONException {
         JSONObject jroot = new JSONObject();
 
@@ -29,6 +35,11 @@ class XAssignment {
         jroot.put("used", this.used);
         jroot.put("restricted", this.restricted);
         jroot.put("exception", this.exception);
+        jroot.put("calls", this.calls);
+        jroot.put("restrictions", this.restrictions);
+        jroot.put("errors", this.errors);
+        jroot.put("duration", this.duration);
+        jroot.put("duration_max", this.durationMax);
 
         return jroot;
     }
@@ -45,6 +56,51 @@ class XAssignment {
         assignment.used = jroot.getLong("used");
         assignment.restricted = jroot.getBoolean("restricted");
         assignment.exception = (jroot.has("exception") ? jroot.getString("exception") : null);
+        assignment.calls = (jroot.has("calls") ? jroot.getLong("calls") : 0);
+        assignment.restrictions = (jroot.has("restrictions") ? jroot.getLong("restrictions") : 0);
+        assignment.errors = (jroot.has("errors") ? jroot.getLong("errors") : 0);
+        assignment.duration = (jroot.has("duration") ? jroot.getLong("duration") : 0);
+        assignment.durationMax = (jroot.has("duration_max") ? jroot.getLong("duration_max") : 0);
+
+        return assignment;
+    }
+
+    // Hooks are written once per cursor without script
+    void toBinary(XBinary.Writer out) {
+        if (out.writeReference(this.hook.getId()))
+            this.hook.toBinary(out, false);
+        out.writeLong(this.installed);
+        out.writeLong(this.used);
+        out.writeBoolean(this.restricted);
+        out.writeString(this.exception);
+        out.writeLong(this.calls);
+        out.writeLong(this.restrictions);
+        out.writeLong(this.errors);
+        out.writeLong(this.duration);
+        out.writeLong(this.durationMax);
+    }
+
+    static XAssignment fromBinary(XBinary.Reader in) {
+        XAssignment assignment = new XAssignment();
+
+        if (in.getVersion() >= 3) {
+            String id = in.readString();
+            if (in.readBoolean()) {
+                assignment.hook = XHook.fromBinary(in);
+                in.putReference(id, assignment.hook);
+            } else
+                assignment.hook = (XHook) in.getReference(id);
+        } else
+            assignment.hook = XHook.fromBinary(in);
+        assignment.installed = in.readLong();
+        assignment.used = in.readLong();
+        assignment.restricted = in.readBoolean();
+        assignment.exception = in.readString();
+        assignment.calls = in.readLong();
+        assignment.restrictions = in.readLong();
+        assignment.errors = in.readLong();
+        assignment.duration = in.readLong();
+        assignment.durationMax = in.readLong();
 
         return assignment;
     }
@@ -0,0 +1,231 @@
+/*
+    This file is part of XPrivacyLua.
+
+    XPrivacyLua is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    XPrivacyLua is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with XPrivacyLua.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2017-2018 Marcel Bokhorst (M66B)
+ */
+
+package eu.faircode.xlua;
+
+import android.database.Cursor;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Compact encoding of provider rows
+// Clients ask for it by adding cColumn to the projection, providers answer with a cColumn column
+// Each row starts with the format version, numbers are zigzag varints
+// Version 2 adds script hashes to hooks
+// Version 3 sends the hook of an assignment once per cursor and references it by id in later rows
+// Strings are sent once per cursor and referenced by index in later rows, so rows must be read in order
+class XBinary {
+    final static String cColumn = "binary";
+    final static int cVersion = 3;
+
+    static boolean isBinary(Cursor cursor) {
+        return (cursor != null && cursor.getColumnCount() > 0 && cColumn.equals(cursor.getColumnName(0)));
+    }
+
+    static class Writer {
+        private byte[] buffer = new byte[1024];
+        private int length = 0;
+        private final Map<String, Integer> strings = new HashMap<>();
+        private final Set<String> references = new HashSet<>();
+
+        Writer() {
+            writeLong(cVersion);
+        }
+
+        // Returns the current row and starts a new one, keeping the string table
+        byte[] row() {
+            byte[] row = Arrays.copyOf(buffer, length);
+            length = 0;
+            writeLong(cVersion);
+            return row;
+        }
+
+        void writeLong(long value) {
+            long v = (value << 1) ^ (value >> 63);
+            while ((v & ~0x7FL) != 0) {
+                writeByte((int) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            writeByte((int) v);
+        }
+
+        void writeInt(int value) {
+            writeLong(value);
+        }
+
+        void writeBoolean(boolean value) {
+            writeByte(value ? 1 : 0);
+        }
+
+        // 0 = null, 1 = new string follows, n = string table entry n - 2
+        void writeString(String value) {
+            if (value == null) {
+                writeLong(0);
+                return;
+            }
+
+            Integer index = strings.get(value);
+            if (index == null) {
+                strings.put(value, strings.size());
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                writeLong(1);
+                writeLong(bytes.length);
+                ensure(bytes.length);
+                System.arraycopy(bytes, 0, buffer, length, bytes.length);
+                length += bytes.length;
+            } else
+                writeLong(index + 2);
+        }
+
+        // Returns true when the object was not written to this cursor before and needs to follow
+        boolean writeReference(String id) {
+            boolean first = references.add(id);
+            writeString(id);
+            writeBoolean(first);
+            return first;
+        }
+
+        void writeStringArray(String[] value) {
+            if (value == null)
+                writeLong(-1);
+            else {
+                writeLong(value.length);
+                for (String s : value)
+                    writeString(s);
+            }
+        }
+
+        private void writeByte(int b) {
+            ensure(1);
+            buffer[length++] = (byte) b;
+        }
+
+        private void ensure(int size) {
+            if (length + size > buffer.length)
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + size));
+        }
+    }
+
+    static class Reader {
+        private ByteBuffer buffer;
+        private int position;
+        private int limit;
+        private int version;
+        private final List<String> strings = new ArrayList<>();
+        private final Map<String, Object> references = new HashMap<>();
+
+        Reader row(byte[] row) {
+            return row(ByteBuffer.wrap(row));
+        }
+
+        // Rows can be read from a mapped region without copying the region
+        Reader row(ByteBuffer row) {
+            buffer = row;
+            position = row.position();
+            limit = row.limit();
+            version = readInt();
+            if (version < 1 || version > cVersion)
+                throw new IllegalArgumentException("Unsupported version=" + version);
+            return this;
+        }
+
+        int getVersion() {
+            return version;
+        }
+
+        long readLong() {
+            long v = 0;
+            int shift = 0;
+            while (true) {
+                if (position >= limit)
+                    throw new IllegalArgumentException("Truncated row");
+                int b = buffer.get(position++);
+                v |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    break;
+                shift += 7;
+            }
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        int readInt() {
+            return (int) readLong();
+        }
+
+        boolean readBoolean() {
+            if (position >= limit)
+                throw new IllegalArgumentException("Truncated row");
+            return (buffer.get(position++) != 0);
+        }
+
+        // Repeated strings resolve to the same instance
+        String readString() {
+            int ref = readInt();
+            if (ref == 0)
+                return null;
+            if (ref == 1) {
+                int size = readInt();
+                if (size < 0 || position + size > limit)
+                    throw new IllegalArgumentException("Truncated row");
+                String value;
+                if (buffer.hasArray())
+                    value = new String(buffer.array(), buffer.arrayOffset() + position, size, StandardCharsets.UTF_8);
+                else {
+                    byte[] bytes = new byte[size];
+                    ByteBuffer slice = buffer.duplicate();
+                    slice.position(position);
+                    slice.get(bytes);
+                    value = new String(bytes, StandardCharsets.UTF_8);
+                }
+                position += size;
+                strings.add(value);
+                return value;
+            }
+            return strings.get(ref - 2);
+        }
+
+        Object getReference(String id) {
+            Object value = references.get(id);
+            if (value == null)
+                throw new IllegalArgumentException("Unknown reference=" + id);
+            return value;
+        }
+
+        void putReference(String id, Object value) {
+            references.put(id, value);
+        }
+
+        String[] readStringArray() {
+            int size = readInt();
+            if (size < 0)
+                return null;
+            String[] value = new String[size];
+            for (int i = 0; i < size; i++)
+                value[i] = readString();
+            return value;
+        }
+    }
+}
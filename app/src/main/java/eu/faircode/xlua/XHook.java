@@ -36,9 +36,11 @@ import org.json.JSONObject;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Scanner;
-import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -60,12 +62,14 @@ public class XHook {
     private int minSdk;
     private int maxSdk;
     private String[] excludePackages;
+    private XPatterns exclusions = null;
     private boolean enabled;
     private boolean optional;
     private boolean usage;
     private boolean notify;
 
     private String luaScript;
+    private String luaHash = null;
 
     private XHook() {
     }
@@ -149,17 +153,16 @@ public class XHook {
         if (this.excludePackages == null)
             return true;
 
-        boolean included = true;
-        for (String excluded : this.excludePackages)
-            if (Pattern.matches(excluded, packageName)) {
-                included = false;
-                break;
-            }
+        if (this.exclusions == null)
+            this.exclusions = XPatterns.get(this.excludePackages);
 
-        if (!included)
+        // Patterns are shared by hooks with the same exclusions, so the hook is logged here
+        if (this.exclusions.matches(packageName)) {
             Log.i(TAG, "Excluded " + this.getId() + " for " + packageName);
+            return false;
+        }
 
-        return included;
+        return true;
     }
 
     public boolean isOptional() {
@@ -178,6 +181,30 @@ public class XHook {
         return this.luaScript;
     }
 
+    // Identifies the script content, scripts are cached by apps under this name
+    public String getLuaHash() {
+        if (this.luaHash == null && this.luaScript != null)
+            this.luaHash = getHash(this.luaScript);
+        return this.luaHash;
+    }
+
+    void setLuaScript(String script) {
+        this.luaScript = script;
+    }
+
+    static String getHash(String script) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] bytes = digest.digest(script.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : bytes)
+                sb.append(String.format("%02x", b));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
     public void resolveClassName(Context context) {
         if ("android.app.ActivityManager".equals(this.className)) {
             Object service = context.getSystemService(ActivityManager.class);
@@ -370,6 +397,68 @@ public class XHook {
         return hook;
     }
 
+    void toBinary(XBinary.Writer out) {
+        toBinary(out, true);
+    }
+
+    // Without script only the hash is written
+    void toBinary(XBinary.Writer out, boolean script) {
+        out.writeBoolean(this.builtin);
+        out.writeString(this.collection);
+        out.writeString(this.group);
+        out.writeString(this.name);
+        out.writeString(this.author);
+
+        out.writeString(this.className);
+        out.writeString(this.resolvedClassName);
+        out.writeString(this.methodName);
+        out.writeStringArray(this.parameterTypes);
+        out.writeString(this.returnType);
+
+        out.writeInt(this.minSdk);
+        out.writeInt(this.maxSdk);
+        out.writeStringArray(this.excludePackages);
+
+        out.writeBoolean(this.enabled);
+        out.writeBoolean(this.optional);
+        out.writeBoolean(this.usage);
+        out.writeBoolean(this.notify);
+
+        out.writeString(this.getLuaHash());
+        out.writeString(script ? this.luaScript : null);
+    }
+
+    static XHook fromBinary(XBinary.Reader in) {
+        XHook hook = new XHook();
+
+        hook.builtin = in.readBoolean();
+        hook.collection = in.readString();
+        hook.group = in.readString();
+        hook.name = in.readString();
+        hook.author = in.readString();
+
+        hook.className = in.readString();
+        hook.resolvedClassName = in.readString();
+        hook.methodName = in.readString();
+        hook.parameterTypes = in.readStringArray();
+        hook.returnType = in.readString();
+
+        hook.minSdk = in.readInt();
+        hook.maxSdk = in.readInt();
+        hook.excludePackages = in.readStringArray();
+
+        hook.enabled = in.readBoolean();
+        hook.optional = in.readBoolean();
+        hook.usage = in.readBoolean();
+        hook.notify = in.readBoolean();
+
+        if (in.getVersion() >= 2)
+            hook.luaHash = in.readString();
+        hook.luaScript = in.readString();
+
+        return hook;
+    }
+
     @Override
     public String toString() {
         return this.getId() + "@" + this.className + ":" + this.methodName;
@@ -0,0 +1,350 @@
+/*
+    This file is part of XPrivacyLua.
+
+    XPrivacyLua is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    XPrivacyLua is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with XPrivacyLua.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2017-2018 Marcel Bokhorst (M66B)
+ */
+
+package eu.faircode.xlua;
+
+import android.annotation.SuppressLint;
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.content.res.Resources;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+// Coalesces usage and exception notifications per (uid, group)
+// and data changed broadcasts per user in the provider process
+class XNotifier {
+    private final static String TAG = "XLua.Notifier";
+
+    private final static long cWindow = 10 * 1000; // milliseconds
+    private final static int cMaxPending = 256;
+    private final static int cMaxLabels = 256;
+
+    private static ScheduledExecutorService scheduler = null;
+
+    private final static Map<String, Pending> pending = new HashMap<>();
+    private final static Map<Integer, Map<String, Integer>> changed = new HashMap<>();
+
+    private final static Map<Integer, Resources> resources = new HashMap<>();
+    private final static Map<Integer, Intent> launchers = new HashMap<>();
+    private final static Map<String, CharSequence> labels = new LinkedHashMap<String, CharSequence>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CharSequence> eldest) {
+            return (size() > cMaxLabels);
+        }
+    };
+
+    static void notifyUsage(Context context, XHook hook, String packageName, int uid) {
+        enqueue(context, "xlua_usage", hook.getGroup(), hook.getId(), packageName, uid);
+    }
+
+    static void notifyException(Context context, XHook hook, String hookid, String packageName, int uid) {
+        enqueue(context, "xlua_exception", hook == null ? hookid : hook.getGroup(), hookid, packageName, uid);
+    }
+
+    static void notifyDataChanged(final Context context, String packageName, int uid, long window) {
+        final int userid = Util.getUserId(uid);
+        synchronized (changed) {
+            Map<String, Integer> apps = changed.get(userid);
+            boolean schedule = (apps == null);
+            if (apps == null) {
+                apps = new LinkedHashMap<>();
+                changed.put(userid, apps);
+            }
+            apps.put(packageName + ":" + uid, uid);
+
+            // One broadcast per user per window listing all changed apps
+            if (schedule)
+                getScheduler().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        broadcastDataChanged(context, userid);
+                    }
+                }, window, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @SuppressLint("MissingPermission")
+    private static void broadcastDataChanged(Context context, int userid) {
+        Map<String, Integer> apps;
+        synchronized (changed) {
+            apps = changed.remove(userid);
+        }
+        if (apps == null)
+            return;
+
+        int i = 0;
+        String[] packageNames = new String[apps.size()];
+        int[] uids = new int[apps.size()];
+        for (String key : apps.keySet()) {
+            packageNames[i] = key.substring(0, key.lastIndexOf(':'));
+            uids[i] = apps.get(key);
+            i++;
+        }
+
+        try {
+            Intent intent = new Intent();
+            intent.setAction(XProvider.ACTION_DATA_CHANGED);
+            intent.setPackage(XNotifier.class.getPackage().getName());
+            intent.putExtra("packageNames", packageNames);
+            intent.putExtra("uids", uids);
+            context.sendBroadcastAsUser(intent, Util.getUserHandle(userid));
+            Log.i(TAG, "Data changed user=" + userid + " apps=" + uids.length);
+        } catch (Throwable ex) {
+            Log.e(TAG, Log.getStackTraceString(ex));
+        }
+    }
+
+    static void invalidate(String packageName, int uid) {
+        synchronized (labels) {
+            labels.remove(packageName + ":" + uid);
+        }
+    }
+
+    private static void enqueue(Context context, String tag, String group, String hookid, String packageName, int uid) {
+        final String key = tag + ":" + uid + ":" + group;
+        synchronized (pending) {
+            Pending p = pending.get(key);
+            if (p == null) {
+                if (pending.size() >= cMaxPending) {
+                    purge();
+
+                    // Scheduled entries cannot be dropped, so drop the new one instead
+                    if (pending.size() >= cMaxPending) {
+                        Log.w(TAG, "Too many pending notifications, dropped " + key);
+                        return;
+                    }
+                }
+                p = new Pending();
+                pending.put(key, p);
+            }
+
+            p.context = context;
+            p.tag = tag;
+            p.group = group;
+            p.hookid = hookid;
+            p.packageName = packageName;
+            p.uid = uid;
+            p.count++;
+
+            // The first notification of a window is shown right away, the rest at the end of the window
+            if (!p.scheduled) {
+                p.scheduled = true;
+                long delay = Math.max(0, p.last + cWindow - SystemClock.elapsedRealtime());
+                getScheduler().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        emit(key);
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private static void purge() {
+        long now = SystemClock.elapsedRealtime();
+        List<String> idle = new ArrayList<>();
+        for (String key : pending.keySet()) {
+            Pending p = pending.get(key);
+            if (!p.scheduled && now - p.last >= cWindow)
+                idle.add(key);
+        }
+        for (String key : idle)
+            pending.remove(key);
+    }
+
+    private static void emit(String key) {
+        Pending p;
+        int count;
+        synchronized (pending) {
+            p = pending.get(key);
+            if (p == null)
+                return;
+            count = p.count;
+            p.count = 0;
+            p.scheduled = false;
+            p.last = SystemClock.elapsedRealtime();
+            p = p.copy();
+        }
+
+        if (count == 0)
+            return;
+
+        try {
+            if ("xlua_usage".equals(p.tag))
+                showUsage(p, count);
+            else
+                showException(p, count);
+        } catch (Throwable ex) {
+            Log.e(TAG, Log.getStackTraceString(ex));
+        }
+    }
+
+    private static void showUsage(Pending p, int count) throws Throwable {
+        int userid = Util.getUserId(p.uid);
+        Context ctx = Util.createContextForUser(p.context, userid);
+        Resources res = getResources(ctx, userid);
+
+        // Get group name
+        String group = p.hookid;
+        String self = XNotifier.class.getPackage().getName();
+        String name = p.group.toLowerCase().replaceAll("[^a-z]", "_");
+        int resId = res.getIdentifier("group_" + name, "string", self);
+        if (resId != 0)
+            group = res.getString(resId);
+
+        // Build notification
+        Notification.Builder builder = new Notification.Builder(ctx);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
+            builder.setChannelId(XProvider.cChannelName);
+        builder.setSmallIcon(android.R.drawable.ic_dialog_info);
+        builder.setContentTitle(res.getString(R.string.msg_usage, group));
+        builder.setContentText(getLabel(ctx, p.packageName, p.uid));
+        if (BuildConfig.DEBUG)
+            builder.setSubText(p.hookid);
+        if (count > 1)
+            builder.setNumber(count);
+
+        builder.setPriority(Notification.PRIORITY_DEFAULT);
+        builder.setCategory(Notification.CATEGORY_STATUS);
+        builder.setVisibility(Notification.VISIBILITY_SECRET);
+
+        builder.setContentIntent(getContentIntent(ctx, userid, p.packageName, p.uid));
+        builder.setAutoCancel(true);
+
+        Util.notifyAsUser(ctx, p.tag, p.uid, builder.build(), userid);
+    }
+
+    private static void showException(Pending p, int count) throws Throwable {
+        int userid = Util.getUserId(p.uid);
+        Context ctx = Util.createContextForUser(p.context, userid);
+        Resources res = getResources(ctx, userid);
+
+        Notification.Builder builder = new Notification.Builder(ctx);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
+            builder.setChannelId(XProvider.cChannelName);
+        builder.setSmallIcon(android.R.drawable.ic_dialog_alert);
+        builder.setContentTitle(res.getString(R.string.msg_exception, p.hookid));
+        builder.setContentText(getLabel(ctx, p.packageName, p.uid));
+        if (count > 1)
+            builder.setNumber(count);
+
+        builder.setPriority(Notification.PRIORITY_HIGH);
+        builder.setCategory(Notification.CATEGORY_STATUS);
+        builder.setVisibility(Notification.VISIBILITY_SECRET);
+
+        builder.setContentIntent(getContentIntent(ctx, userid, p.packageName, p.uid));
+        builder.setAutoCancel(true);
+
+        Util.notifyAsUser(ctx, p.tag, p.uid, builder.build(), userid);
+    }
+
+    private static Resources getResources(Context ctx, int userid) throws PackageManager.NameNotFoundException {
+        synchronized (resources) {
+            Resources res = resources.get(userid);
+            if (res == null) {
+                String self = XNotifier.class.getPackage().getName();
+                res = ctx.getPackageManager().getResourcesForApplication(self);
+                resources.put(userid, res);
+            }
+            return res;
+        }
+    }
+
+    private static CharSequence getLabel(Context ctx, String packageName, int uid) throws PackageManager.NameNotFoundException {
+        String key = packageName + ":" + uid;
+        synchronized (labels) {
+            CharSequence label = labels.get(key);
+            if (label != null)
+                return label;
+        }
+
+        PackageManager pm = ctx.getPackageManager();
+        CharSequence label = pm.getApplicationLabel(pm.getApplicationInfo(packageName, 0));
+        synchronized (labels) {
+            labels.put(key, label);
+        }
+        return label;
+    }
+
+    private static PendingIntent getContentIntent(Context ctx, int userid, String packageName, int uid) {
+        Intent launch;
+        synchronized (launchers) {
+            launch = launchers.get(userid);
+            if (launch == null) {
+                String self = XNotifier.class.getPackage().getName();
+                launch = ctx.getPackageManager().getLaunchIntentForPackage(self);
+                launchers.put(userid, launch);
+            }
+        }
+
+        Intent main = new Intent(launch);
+        main.putExtra(ActivityMain.EXTRA_SEARCH_PACKAGE, packageName);
+        return PendingIntent.getActivity(ctx, uid, main, 0);
+    }
+
+    private static synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null)
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "XLua.Notifier");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        return scheduler;
+    }
+
+    private static class Pending {
+        Context context;
+        String tag;
+        String group;
+        String hookid;
+        String packageName;
+        int uid;
+        int count = 0;
+        long last = -cWindow;
+        boolean scheduled = false;
+
+        Pending copy() {
+            Pending p = new Pending();
+            p.context = context;
+            p.tag = tag;
+            p.group = group;
+            p.hookid = hookid;
+            p.packageName = packageName;
+            p.uid = uid;
+            return p;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+    This file is part of XPrivacyLua.
+
+    XPrivacyLua is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    XPrivacyLua is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with XPrivacyLua.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2017-2018 Marcel Bokhorst (M66B)
+ */
+
+package eu.faircode.xlua;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.Binder;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Installed app metadata per user in the provider, loaded on first use and updated by package broadcasts
+// Labels are only reloaded when the last update time of a package or the locale changes
+class XPackages {
+    private final static String TAG = "XLua.Packages";
+
+    private final static Map<Integer, Map<String, Entry>> users = new ConcurrentHashMap<>();
+    private static String locale = null;
+
+    final static AtomicLong hits = new AtomicLong();
+    final static AtomicLong loads = new AtomicLong();
+    final static AtomicLong updates = new AtomicLong();
+
+    // Returns copies without assignments
+    static List<XApp> getApps(Context context, int userid) throws Throwable {
+        List<XApp> apps = new ArrayList<>();
+        for (Entry entry : getEntries(context, userid).values())
+            apps.add(entry.copy());
+        return apps;
+    }
+
+    static XApp getApp(Context context, int userid, String packageName) throws Throwable {
+        Entry entry = getEntries(context, userid).get(packageName);
+        return (entry == null ? null : entry.copy());
+    }
+
+    static void update(Context context, int userid, String packageName) throws Throwable {
+        checkLocale(context);
+        Map<String, Entry> entries = users.get(userid);
+        if (entries == null)
+            return;
+
+        long ident = Binder.clearCallingIdentity();
+        try {
+            PackageManager pm = Util.createContextForUser(context, userid).getPackageManager();
+            PackageInfo pi;
+            try {
+                pi = pm.getPackageInfo(packageName, 0);
+            } catch (PackageManager.NameNotFoundException ignored) {
+                pi = null;
+            }
+
+            updates.incrementAndGet();
+            if (pi == null)
+                entries.remove(packageName);
+            else
+                entries.put(packageName, load(pm, pi, entries.get(packageName)));
+            Log.i(TAG, "Updated pkg=" + packageName + " user=" + userid + " installed=" + (pi != null));
+        } finally {
+            Binder.restoreCallingIdentity(ident);
+        }
+    }
+
+    private static Map<String, Entry> getEntries(Context context, int userid) throws Throwable {
+        checkLocale(context);
+        Map<String, Entry> entries = users.get(userid);
+        if (entries != null) {
+            hits.incrementAndGet();
+            return entries;
+        }
+        loads.incrementAndGet();
+
+        // Access package manager as system user
+        long ident = Binder.clearCallingIdentity();
+        try {
+            long start = System.currentTimeMillis();
+            PackageManager pm = Util.createContextForUser(context, userid).getPackageManager();
+            entries = new ConcurrentHashMap<>();
+            for (PackageInfo pi : pm.getInstalledPackages(0))
+                if (pi.applicationInfo != null)
+                    entries.put(pi.packageName, load(pm, pi, null));
+            users.put(userid, entries);
+            Log.i(TAG, "Loaded user=" + userid + " apps=" + entries.size() +
+                    " elapsed=" + (System.currentTimeMillis() - start) + " ms");
+            return entries;
+        } finally {
+            Binder.restoreCallingIdentity(ident);
+        }
+    }
+
+    // The provider outlives locale changes, so labels in the old language are dropped
+    private static synchronized void checkLocale(Context context) {
+        String current = context.getResources().getConfiguration().locale.toString();
+        if (!current.equals(locale)) {
+            if (locale != null)
+                Log.i(TAG, "Locale changed from " + locale + " to " + current);
+            users.clear();
+            locale = current;
+        }
+    }
+
+    private static Entry load(PackageManager pm, PackageInfo pi, Entry previous) {
+        ApplicationInfo ai = pi.applicationInfo;
+
+        int esetting;
+        try {
+            esetting = pm.getApplicationEnabledSetting(ai.packageName);
+        } catch (IllegalArgumentException ignored) {
+            esetting = PackageManager.COMPONENT_ENABLED_STATE_DEFAULT;
+        }
+
+        Entry entry = new Entry();
+        entry.lastUpdateTime = pi.lastUpdateTime;
+        entry.uid = ai.uid;
+        entry.icon = ai.icon;
+        entry.label = (previous != null && previous.lastUpdateTime == pi.lastUpdateTime
+                ? previous.label : (String) pm.getApplicationLabel(ai));
+        entry.enabled = (ai.enabled &&
+                (esetting == PackageManager.COMPONENT_ENABLED_STATE_DEFAULT ||
+                        esetting == PackageManager.COMPONENT_ENABLED_STATE_ENABLED));
+        entry.persistent = ((ai.flags & ApplicationInfo.FLAG_PERSISTENT) != 0 ||
+                "android".equals(ai.packageName));
+        entry.system = ((ai.flags &
+                (ApplicationInfo.FLAG_SYSTEM | ApplicationInfo.FLAG_UPDATED_SYSTEM_APP)) != 0);
+        entry.packageName = ai.packageName;
+        return entry;
+    }
+
+    private static class Entry {
+        long lastUpdateTime;
+        String packageName;
+        int uid;
+        int icon;
+        String label;
+        boolean enabled;
+        boolean persistent;
+        boolean system;
+
+        XApp copy() {
+            XApp app = new XApp();
+            app.uid = this.uid;
+            app.packageName = this.packageName;
+            app.icon = this.icon;
+            app.label = this.label;
+            app.enabled = this.enabled;
+            app.persistent = this.persistent;
+            app.system = this.system;
+            app.assignments = new ArrayList<>();
+            return app;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+    This file is part of XPrivacyLua.
+
+    XPrivacyLua is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    XPrivacyLua is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with XPrivacyLua.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2017-2018 Marcel Bokhorst (M66B)
+ */
+
+package eu.faircode.xlua;
+
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+// Compiled package exclusion patterns, shared by hooks with the same patterns
+// Literal patterns and literal prefixes followed by .* are matched with a trie, others are compiled once
+// Results are remembered per package, hooks replaced by putHook get new patterns if theirs changed
+class XPatterns {
+    private final static int cMaxResults = 1000; // packages
+
+    private final static Map<String, XPatterns> compiled = new HashMap<>();
+
+    final static AtomicLong hits = new AtomicLong();
+    final static AtomicLong misses = new AtomicLong();
+
+    private final Node prefixes = new Node();
+    private final Set<String> literals = new HashSet<>();
+    private final List<Pattern> patterns = new ArrayList<>();
+    private final Map<String, Boolean> results = new ConcurrentHashMap<>();
+
+    static XPatterns get(String[] excluded) {
+        String key = TextUtils.join(",", excluded);
+        synchronized (compiled) {
+            XPatterns p = compiled.get(key);
+            if (p == null) {
+                p = new XPatterns(excluded);
+                compiled.put(key, p);
+            }
+            return p;
+        }
+    }
+
+    private XPatterns(String[] excluded) {
+        for (String regex : excluded) {
+            boolean prefix = regex.endsWith(".*");
+            String literal = getLiteral(prefix ? regex.substring(0, regex.length() - 2) : regex);
+            if (literal == null)
+                patterns.add(Pattern.compile(regex));
+            else if (prefix)
+                prefixes.add(literal);
+            else
+                literals.add(literal);
+        }
+    }
+
+    boolean matches(String packageName) {
+        Boolean result = results.get(packageName);
+        if (result != null) {
+            hits.incrementAndGet();
+            return result;
+        }
+        misses.incrementAndGet();
+
+        result = (literals.contains(packageName) || prefixes.matches(packageName));
+        if (!result)
+            for (Pattern pattern : patterns)
+                if (pattern.matcher(packageName).matches()) {
+                    result = true;
+                    break;
+                }
+
+        if (results.size() > cMaxResults)
+            results.clear();
+        results.put(packageName, result);
+        return result;
+    }
+
+    // Returns null if the regex is not a plain literal
+    private static String getLiteral(String regex) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                if (++i == regex.length())
+                    return null;
+                c = regex.charAt(i);
+                if (Character.isLetterOrDigit(c))
+                    return null; // character class or back reference
+                sb.append(c);
+            } else if ("^$.|?*+()[]{}".indexOf(c) >= 0)
+                return null;
+            else
+                sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    private static class Node {
+        boolean terminal = false;
+        Map<Character, Node> children = new HashMap<>();
+
+        void add(String prefix) {
+            Node node = this;
+            for (int i = 0; i < prefix.length(); i++) {
+                Node child = node.children.get(prefix.charAt(i));
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(prefix.charAt(i), child);
+                }
+                node = child;
+            }
+            node.terminal = true;
+        }
+
+        boolean matches(String value) {
+            Node node = this;
+            for (int i = 0; !node.terminal; i++) {
+                if (i == value.length())
+                    return false;
+                node = node.children.get(value.charAt(i));
+                if (node == null)
+                    return false;
+            }
+            return true;
+        }
+    }
+}
@@ -19,20 +19,18 @@
 
 package eu.faircode.xlua;
 
-import android.annotation.SuppressLint;
 import android.app.ActivityManager;
-import android.app.Notification;
-import android.app.PendingIntent;
 import android.content.ContentValues;
 import android.content.Context;
-import android.content.Intent;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
-import android.content.res.Resources;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Build;
@@ -41,7 +39,9 @@ import android.os.Environment;
 import android.os.Process;
 import android.os.RemoteException;
 import android.os.StrictMode;
+import android.os.SystemClock;
 import android.provider.Settings;
+import android.text.TextUtils;
 import android.util.Log;
 
 import java.io.File;
@@ -50,9 +50,18 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import de.robv.android.xposed.XposedBridge;
 
@@ -61,28 +70,86 @@ class XProvider {
 
     private final static Object lock = new Object();
 
-    private static SQLiteDatabase db = null;
-    private static ReentrantReadWriteLock dbLock = new ReentrantReadWriteLock(true);
+    // One database per user, opened on first use
+    private final static Map<Integer, XShard> shards = new ConcurrentHashMap<>();
 
-    private static Map<String, XHook> hooks = null;
-    private static Map<String, XHook> builtins = null;
+    // Copy-on-write: replaced as a whole while holding lock, read without locking
+    private static volatile Map<String, XHook> hooks = null;
+    private static volatile Map<String, XHook> builtins = null;
+
+    private final static AtomicLong hooksCopied = new AtomicLong();
+
+    // Bumped on every configuration change, seeded with the time to differ across restarts
+    private final static AtomicLong generation = new AtomicLong(System.currentTimeMillis());
+
+    // Per app change generations for delta sync of the app list
+    // Clients with a generation from before the last reset need to reload everything
+    private final static AtomicLong changeGeneration = new AtomicLong(System.currentTimeMillis());
+    private static volatile long resetGeneration = changeGeneration.get();
+    private final static Map<String, Long> changes = new ConcurrentHashMap<>();
+
+    // Signature verdicts per calling app id, cleared when packages are added, changed or removed
+    private final static Map<Integer, Boolean> verdicts = new ConcurrentHashMap<>();
+    private final static AtomicLong verdictHits = new AtomicLong();
+    private final static AtomicLong verdictMisses = new AtomicLong();
+
+    // Mutations are queued to a single writer thread, which commits them in groups
+    private final static int cWriteBatch = 64; // writes
+    private final static long cWriteDelay = 5; // milliseconds
+    private final static int cMaxPosted = 1000; // writes
+    private final static BlockingQueue<Write> writes = new LinkedBlockingQueue<>();
+    private static Thread writer = null;
+    private final static AtomicLong writesCommitted = new AtomicLong();
+    private final static AtomicLong writesFailed = new AtomicLong();
+    private final static AtomicLong writesDropped = new AtomicLong();
+    private final static AtomicLong commits = new AtomicLong();
+
+    private final static Map<Integer, Long> refreshWindow = new HashMap<>();
 
     final static String cChannelName = "xlua";
+    private final static long cDefaultRefreshWindow = 1000; // milliseconds
+
+    // Assignments refer to interned package names, hook ids and exceptions
+    // Install state and exceptions written in an earlier boot epoch count as unset
+    private final static String cPackageId = "(SELECT id FROM intern_package WHERE name = ?)";
+    private final static String cHookId = "(SELECT id FROM intern_hook WHERE name = ?)";
+    private final static String cEpoch = "(SELECT epoch FROM boot)";
+    private final static String cAssignments = "SELECT p.name AS package, a.uid AS uid, h.name AS hook," +
+            " CASE WHEN a.epoch = " + cEpoch + " THEN a.installed ELSE -1 END AS installed," +
+            " a.used AS used, a.restricted AS restricted, e.text AS exception" +
+            " FROM assigned a" +
+            " JOIN intern_package p ON p.id = a.package" +
+            " JOIN intern_hook h ON h.id = a.hook" +
+            " LEFT JOIN intern_exception e ON e.id = a.exception AND a.epoch = " + cEpoch;
+    private final static int cCompactBatch = 100; // rows
+
+    // Usage history buckets of a minute, an hour and a day
+    private final static long[] cHistoryResolutions = new long[]{60 * 1000L, 3600 * 1000L, 24 * 3600 * 1000L};
+    private final static long[] cHistoryRetention = new long[]{24 * 3600 * 1000L, 14 * 24 * 3600 * 1000L, 365 * 24 * 3600 * 1000L};
+    private final static long cHistoryCleanupInterval = 3600 * 1000L;
+
+    // Methods served by query, the settings provider hook routes projections by this table
+    final static String[] cQueryMethods = new String[]{
+            "getHooks", "getApps", "getAssignedHooks", "getSettings", "getHistory", "getAppPage"};
 
     static Uri URI = Settings.System.CONTENT_URI;
     static String ACTION_DATA_CHANGED = XProvider.class.getPackage().getName() + ".DATA_CHANGED";
 
     static void loadData(Context context) throws RemoteException {
+        // Hooks are loaded last, the databases of users are opened on first use
+        if (hooks != null)
+            return;
+
         try {
             synchronized (lock) {
-                if (db == null)
-                    db = getDatabase();
                 if (hooks == null) {
-                    hooks = loadHooks(context);
-                    builtins = new HashMap<>();
-                    for (XHook hook : hooks.values())
+                    Map<String, XHook> loaded = loadHooks(context);
+                    Map<String, XHook> builtin = new HashMap<>();
+                    for (XHook hook : loaded.values())
                         if (hook.isBuiltin())
-                            builtins.put(hook.getId(), hook);
+                            builtin.put(hook.getId(), hook);
+                    builtins = Collections.unmodifiableMap(builtin);
+                    hooks = Collections.unmodifiableMap(loaded);
                 }
             }
         } catch (RemoteException ex) {
@@ -95,6 +162,9 @@ class XProvider {
     static Bundle call(Context context, String method, Bundle extras) throws RemoteException, IllegalArgumentException {
         loadData(context);
 
+        long start = System.nanoTime();
+        boolean handled = true;
+        boolean failed = true;
         Bundle result = null;
         StrictMode.ThreadPolicy originalPolicy = StrictMode.getThreadPolicy();
         try {
@@ -110,12 +180,24 @@ class XProvider {
                 case "assignHooks":
                     result = assignHooks(context, extras);
                     break;
+                case "assignBulk":
+                    result = assignBulk(context, extras);
+                    break;
                 case "report":
                     result = report(context, extras);
                     break;
+                case "reportUsage":
+                    result = reportUsage(context, extras);
+                    break;
                 case "getSetting":
                     result = getSetting(context, extras);
                     break;
+                case "getBootstrap":
+                    result = getBootstrap(context, extras);
+                    break;
+                case "getScripts":
+                    result = getScripts(context, extras);
+                    break;
                 case "putSetting":
                     result = putSetting(context, extras);
                     break;
@@ -125,10 +207,19 @@ class XProvider {
                 case "clearApp":
                     result = clearApp(context, extras);
                     break;
+                case "packageChanged":
+                    result = packageChanged(context, extras);
+                    break;
                 case "clearData":
                     result = clearData(context, extras);
                     break;
+                case "getStats":
+                    result = getStats(context, extras);
+                    break;
+                default:
+                    handled = false;
             }
+            failed = false;
         } catch (IllegalArgumentException ex) {
             throw ex;
         } catch (RemoteException ex) {
@@ -137,6 +228,10 @@ class XProvider {
             throw new RemoteException(ex.getMessage());
         } finally {
             StrictMode.setThreadPolicy(originalPolicy);
+            // Any app can call the provider, so names of unknown methods are not recorded
+            if (handled)
+                XStats.record("call " + method, System.nanoTime() - start, failed,
+                        result == null ? 0 : XStats.getSize(result));
         }
 
         //Log.i(TAG, "Call " + method +
@@ -147,9 +242,12 @@ class XProvider {
         return result;
     }
 
-    static Cursor query(Context context, String method, String[] selection) throws RemoteException {
+    static Cursor query(Context context, String method, String[] selection, boolean binary) throws RemoteException {
         loadData(context);
 
+        long start = System.nanoTime();
+        boolean handled = true;
+        boolean failed = true;
         Cursor result = null;
         StrictMode.ThreadPolicy originalPolicy = StrictMode.getThreadPolicy();
         try {
@@ -157,24 +255,36 @@ class XProvider {
             StrictMode.allowThreadDiskWrites();
             switch (method) {
                 case "getHooks":
-                    result = getHooks(context, selection);
+                    result = getHooks(context, selection, binary);
                     break;
                 case "getApps":
-                    result = getApps(context, selection);
+                    result = getApps(context, selection, binary);
                     break;
                 case "getAssignedHooks":
-                    result = getAssignedHooks(context, selection);
+                    result = getAssignedHooks(context, selection, binary);
                     break;
                 case "getSettings":
                     result = getSettings(context, selection);
                     break;
+                case "getHistory":
+                    result = getHistory(context, selection);
+                    break;
+                case "getAppPage":
+                    result = getAppPage(context, selection, binary);
+                    break;
+                default:
+                    handled = false;
             }
+            failed = false;
         } catch (RemoteException ex) {
             throw ex;
         } catch (Throwable ex) {
             throw new RemoteException(ex.getMessage());
         } finally {
             StrictMode.setThreadPolicy(originalPolicy);
+            if (handled)
+                XStats.record("query " + method, System.nanoTime() - start, failed,
+                        result == null ? 0 : result.getCount());
         }
 
         //Log.i(TAG, "Query " + method +
@@ -191,13 +301,13 @@ class XProvider {
         enforcePermission(context);
 
         // Get arguments
-        String id = extras.getString("id");
+        final String id = extras.getString("id");
         String definition = extras.getString("definition");
         if (id == null)
             throw new IllegalArgumentException("id missing");
 
         // Get hook
-        XHook hook = (definition == null ? null : XHook.fromJSON(definition));
+        final XHook hook = (definition == null ? null : XHook.fromJSON(definition));
         if (hook != null) {
             hook.validate();
             if (!id.equals(hook.getId()))
@@ -206,48 +316,48 @@ class XProvider {
 
         // Cache hook
         synchronized (lock) {
+            Map<String, XHook> copy = new HashMap<>(hooks);
             if (hook == null) {
-                if (hooks.containsKey(id) && hooks.get(id).isBuiltin())
+                if (copy.containsKey(id) && copy.get(id).isBuiltin())
                     throw new IllegalArgumentException("builtin");
-                hooks.remove(id);
+                copy.remove(id);
                 if (builtins.containsKey(id)) {
                     XHook builtin = builtins.get(id);
                     builtin.resolveClassName(context);
-                    hooks.put(id, builtin);
+                    copy.put(id, builtin);
                 }
             } else {
                 hook.resolveClassName(context);
-                hooks.put(id, hook);
+                copy.put(id, hook);
             }
+            hooks = Collections.unmodifiableMap(copy);
+            hooksCopied.incrementAndGet();
         }
 
         // Persist define hook
-        if (hook == null || !hook.isBuiltin()) {
-            dbLock.writeLock().lock();
-            try {
-                db.beginTransaction();
-                try {
+        if (hook == null || !hook.isBuiltin())
+            write(new Write(getShard(context, 0)) {
+                @Override
+                void run() throws Throwable {
                     if (hook == null) {
-                        long rows = db.delete("hook", "id = ?", new String[]{id});
+                        long rows = shard.db.delete("hook", "id = ?", new String[]{id});
                         if (rows < 0)
                             throw new Throwable("Error deleting hook");
                     } else {
                         ContentValues cv = new ContentValues();
                         cv.put("id", id);
                         cv.put("definition", hook.toJSON());
-                        long rows = db.insertWithOnConflict("hook", null, cv, SQLiteDatabase.CONFLICT_REPLACE);
+                        long rows = shard.db.insertWithOnConflict("hook", null, cv, SQLiteDatabase.CONFLICT_REPLACE);
                         if (rows < 0)
                             throw new Throwable("Error inserting hook");
                     }
-
-                    db.setTransactionSuccessful();
-                } finally {
-                    db.endTransaction();
                 }
-            } finally {
-                dbLock.writeLock().unlock();
-            }
-        }
+            });
+
+        generation.incrementAndGet();
+
+        // Any app can have the hook assigned, so clients need to reload everything
+        resetGeneration = changeGeneration.incrementAndGet();
 
         return new Bundle();
     }
@@ -255,24 +365,20 @@ class XProvider {
     private static Bundle getGroups(Context context, Bundle extras) throws Throwable {
         List<String> groups = new ArrayList<>();
 
-        synchronized (lock) {
-            for (XHook hook : hooks.values())
-                if (hook.isAvailable(null) && !groups.contains(hook.getGroup()))
-                    groups.add(hook.getGroup());
-        }
+        for (XHook hook : hooks.values())
+            if (hook.isAvailable(null) && !groups.contains(hook.getGroup()))
+                groups.add(hook.getGroup());
 
         Bundle result = new Bundle();
         result.putStringArray("groups", groups.toArray(new String[0]));
         return result;
     }
 
-    private static Cursor getHooks(Context context, String[] selection) throws Throwable {
+    private static Cursor getHooks(Context context, String[] selection, boolean binary) throws Throwable {
         List<XHook> hv = new ArrayList();
-        synchronized (lock) {
-            for (XHook hook : hooks.values())
-                if (hook.isAvailable(null))
-                    hv.add(hook);
-        }
+        for (XHook hook : hooks.values())
+            if (hook.isAvailable(null))
+                hv.add(hook);
 
         Collections.sort(hv, new Comparator<XHook>() {
             @Override
@@ -281,212 +387,349 @@ class XProvider {
             }
         });
 
-        MatrixCursor result = new MatrixCursor(new String[]{"json"});
+        MatrixCursor result = new MatrixCursor(new String[]{binary ? XBinary.cColumn : "json"});
+        XBinary.Writer writer = (binary ? new XBinary.Writer() : null);
         for (XHook hook : hv)
-            result.addRow(new Object[]{hook.toJSON()});
+            if (binary) {
+                hook.toBinary(writer);
+                result.addRow(new Object[]{writer.row()});
+            } else
+                result.addRow(new Object[]{hook.toJSONObject().toString()});
         return result;
     }
 
-    private static Cursor getApps(Context context, String[] selection) throws Throwable {
+    private static Cursor getApps(Context context, String[] selection, boolean binary) throws Throwable {
         Map<String, XApp> apps = new HashMap<>();
 
         int cuid = Binder.getCallingUid();
         int userid = Util.getUserId(cuid);
 
-        // Access package manager as system user
-        long ident = Binder.clearCallingIdentity();
-        try {
-            // Get installed apps for current user
-            String self = XProvider.class.getPackage().getName();
-            PackageManager pm = Util.createContextForUser(context, userid).getPackageManager();
-            for (ApplicationInfo ai : pm.getInstalledApplications(0))
-                if (!"android".equals(ai.packageName) &&
-                        !self.equals(ai.packageName) &&
-                        !Util.PRO_PACKAGE_NAME.equals(ai.packageName)) {
-                    int esetting = pm.getApplicationEnabledSetting(ai.packageName);
-                    boolean enabled = (ai.enabled &&
-                            (esetting == PackageManager.COMPONENT_ENABLED_STATE_DEFAULT ||
-                                    esetting == PackageManager.COMPONENT_ENABLED_STATE_ENABLED));
-                    boolean persistent = ((ai.flags & ApplicationInfo.FLAG_PERSISTENT) != 0 ||
-                            "android".equals(ai.packageName));
-                    boolean system = ((ai.flags &
-                            (ApplicationInfo.FLAG_SYSTEM | ApplicationInfo.FLAG_UPDATED_SYSTEM_APP)) != 0);
-
-                    XApp app = new XApp();
-                    app.uid = ai.uid;
-                    app.packageName = ai.packageName;
-                    app.icon = ai.icon;
-                    app.label = (String) pm.getApplicationLabel(ai);
-                    app.enabled = enabled;
-                    app.persistent = persistent;
-                    app.system = system;
-                    app.assignments = new ArrayList<>();
-                    apps.put(app.packageName + ":" + app.uid, app);
-                }
-        } finally {
-            Binder.restoreCallingIdentity(ident);
+        // Optional selection of package name, uid pairs
+        if (selection != null && selection.length % 2 != 0)
+            throw new IllegalArgumentException("selection invalid");
+
+        // Get installed apps for current user
+        String self = XProvider.class.getPackage().getName();
+        List<XApp> installed;
+        if (selection == null)
+            installed = XPackages.getApps(context, userid);
+        else {
+            installed = new ArrayList<>();
+            for (int i = 0; i < selection.length; i += 2) {
+                XApp app = XPackages.getApp(context, userid, selection[i]);
+                if (app != null && app.uid == Integer.parseInt(selection[i + 1]))
+                    installed.add(app);
+            }
         }
+        for (XApp app : installed)
+            if (!"android".equals(app.packageName) &&
+                    !self.equals(app.packageName) &&
+                    !Util.PRO_PACKAGE_NAME.equals(app.packageName))
+                apps.put(app.packageName + ":" + app.uid, app);
 
         Log.i(TAG, "Installed apps=" + apps.size() + " cuid=" + cuid);
 
         // Get assigned hooks
-        dbLock.readLock().lock();
+        Map<String, XHook> snapshot = hooks;
+        XShard shard = getShard(context, userid);
+        int start = Util.getUserUid(userid, 0);
+        int end = Util.getUserUid(userid, Process.LAST_APPLICATION_UID);
+
+        String where = "uid >= ? AND uid <= ?";
+        String awhere = "a.uid >= ? AND a.uid <= ?";
+        List<String> args = new ArrayList<>();
+        args.add(Integer.toString(start));
+        args.add(Integer.toString(end));
+        if (selection != null) {
+            StringBuilder in = new StringBuilder();
+            for (XApp app : apps.values()) {
+                in.append(in.length() == 0 ? "?" : ", ?");
+                args.add(app.packageName);
+            }
+            where += " AND package IN (" + (in.length() == 0 ? "NULL" : in) + ")";
+            awhere += " AND p.name IN (" + (in.length() == 0 ? "NULL" : in) + ")";
+        }
+        String[] whereArgs = args.toArray(new String[0]);
+
+        // Get usage counters
+        Map<String, long[]> usage = new HashMap<>();
+        Cursor ucursor = null;
+        shard.acquire();
         try {
-            db.beginTransaction();
-            try {
-                Cursor cursor = null;
-                try {
-                    int start = Util.getUserUid(userid, 0);
-                    int end = Util.getUserUid(userid, Process.LAST_APPLICATION_UID);
-                    cursor = db.query(
-                            "assignment",
-                            new String[]{"package", "uid", "hook", "installed", "used", "restricted", "exception"},
-                            "uid >= ? AND uid <= ?",
-                            new String[]{Integer.toString(start), Integer.toString(end)},
-                            null, null, null);
-                    int colPkg = cursor.getColumnIndex("package");
-                    int colUid = cursor.getColumnIndex("uid");
-                    int colHook = cursor.getColumnIndex("hook");
-                    int colInstalled = cursor.getColumnIndex("installed");
-                    int colUsed = cursor.getColumnIndex("used");
-                    int colRestricted = cursor.getColumnIndex("restricted");
-                    int colException = cursor.getColumnIndex("exception");
-                    while (cursor.moveToNext()) {
-                        String pkg = cursor.getString(colPkg);
-                        int uid = cursor.getInt(colUid);
-                        String hookid = cursor.getString(colHook);
-                        if (apps.containsKey(pkg + ":" + uid)) {
-                            XApp app = apps.get(pkg + ":" + uid);
-                            synchronized (lock) {
-                                if (hooks.containsKey(hookid)) {
-                                    XHook hook = hooks.get(hookid);
-                                    if (hook.isAvailable(pkg)) {
-                                        XAssignment assignment = new XAssignment(hook);
-                                        assignment.installed = cursor.getLong(colInstalled);
-                                        assignment.used = cursor.getLong(colUsed);
-                                        assignment.restricted = (cursor.getInt(colRestricted) == 1);
-                                        assignment.exception = cursor.getString(colException);
-                                        app.assignments.add(assignment);
-                                    }
-                                } else if (BuildConfig.DEBUG)
-                                    Log.w(TAG, "Hook " + hookid + " not found");
-                            }
-                        } else
-                            Log.i(TAG, "Package " + pkg + ":" + uid + " not found");
-                    }
-                } finally {
-                    if (cursor != null)
-                        cursor.close();
-                }
+            ucursor = shard.db.query(
+                    "usage",
+                    new String[]{"package", "uid", "hook", "calls", "restricted", "errors", "duration", "duration_max"},
+                    where, whereArgs,
+                    null, null, null);
+            while (ucursor.moveToNext())
+                usage.put(ucursor.getString(0) + ":" + ucursor.getInt(1) + "/" + ucursor.getString(2),
+                        new long[]{ucursor.getLong(3), ucursor.getLong(4), ucursor.getLong(5),
+                                ucursor.getLong(6), ucursor.getLong(7)});
+        } finally {
+            if (ucursor != null)
+                ucursor.close();
+            shard.release();
+        }
 
-                db.setTransactionSuccessful();
-            } finally {
-                db.endTransaction();
+        Cursor cursor = null;
+        shard.acquire();
+        try {
+            cursor = shard.db.rawQuery(cAssignments + " WHERE " + awhere, whereArgs);
+            int colPkg = cursor.getColumnIndex("package");
+            int colUid = cursor.getColumnIndex("uid");
+            int colHook = cursor.getColumnIndex("hook");
+            int colInstalled = cursor.getColumnIndex("installed");
+            int colUsed = cursor.getColumnIndex("used");
+            int colRestricted = cursor.getColumnIndex("restricted");
+            int colException = cursor.getColumnIndex("exception");
+            while (cursor.moveToNext()) {
+                String pkg = cursor.getString(colPkg);
+                int uid = cursor.getInt(colUid);
+                String hookid = cursor.getString(colHook);
+                if (apps.containsKey(pkg + ":" + uid)) {
+                    XApp app = apps.get(pkg + ":" + uid);
+                    XHook hook = snapshot.get(hookid);
+                    if (hook != null) {
+                        if (hook.isAvailable(pkg)) {
+                            XAssignment assignment = new XAssignment(hook);
+                            assignment.installed = cursor.getLong(colInstalled);
+                            assignment.used = cursor.getLong(colUsed);
+                            assignment.restricted = (cursor.getInt(colRestricted) == 1);
+                            assignment.exception = cursor.getString(colException);
+                            long[] counters = usage.get(pkg + ":" + uid + "/" + hookid);
+                            if (counters != null) {
+                                assignment.calls = counters[0];
+                                assignment.restrictions = counters[1];
+                                assignment.errors = counters[2];
+                                assignment.duration = counters[3];
+                                assignment.durationMax = counters[4];
+                            }
+                            app.assignments.add(assignment);
+                        }
+                    } else if (BuildConfig.DEBUG)
+                        Log.w(TAG, "Hook " + hookid + " not found");
+                } else if (selection == null)
+                    Log.i(TAG, "Package " + pkg + ":" + uid + " not found");
             }
         } finally {
-            dbLock.readLock().unlock();
+            if (cursor != null)
+                cursor.close();
+            shard.release();
         }
 
-        MatrixCursor result = new MatrixCursor(new String[]{"json"});
+        MatrixCursor result = new MatrixCursor(new String[]{binary ? XBinary.cColumn : "json"});
+        XBinary.Writer writer = (binary ? new XBinary.Writer() : null);
         for (XApp app : apps.values())
-            result.addRow(new String[]{app.toJSON()});
+            if (binary) {
+                app.toBinary(writer);
+                result.addRow(new Object[]{writer.row()});
+            } else
+                result.addRow(new Object[]{app.toJSONObject().toString()});
         return result;
     }
 
+    // Selection: offset, limit, since generation (-1 for all apps)
+    // Extras: generation to pass as since next time, total number of apps, removed apps, full when since was too old
+    private static Cursor getAppPage(Context context, String[] selection, boolean binary) throws Throwable {
+        if (selection == null || selection.length != 3)
+            throw new IllegalArgumentException("selection invalid");
+
+        int offset = Integer.parseInt(selection[0]);
+        int limit = Integer.parseInt(selection[1]);
+        long since = Long.parseLong(selection[2]);
+
+        int cuid = Binder.getCallingUid();
+        int userid = Util.getUserId(cuid);
+
+        // Read first, so that changes made while building the page are returned next time
+        long current = changeGeneration.get();
+        boolean full = (since < resetGeneration);
+
+        List<XApp> installed = XPackages.getApps(context, userid);
+
+        // Stable order across pages
+        Collections.sort(installed, new Comparator<XApp>() {
+            @Override
+            public int compare(XApp app1, XApp app2) {
+                int c = app1.packageName.compareTo(app2.packageName);
+                return (c == 0 ? Integer.compare(app1.uid, app2.uid) : c);
+            }
+        });
+
+        // Same apps as getApps returns
+        String self = XProvider.class.getPackage().getName();
+        List<String> keys = new ArrayList<>();
+        for (XApp app : installed) {
+            if ("android".equals(app.packageName) ||
+                    self.equals(app.packageName) ||
+                    Util.PRO_PACKAGE_NAME.equals(app.packageName))
+                continue;
+            String key = app.packageName + ":" + app.uid;
+            if (full || (changes.containsKey(key) && changes.get(key) > since))
+                keys.add(key);
+        }
+
+        // Changed apps which are not installed anymore
+        List<String> removed = new ArrayList<>();
+        if (!full) {
+            int start = Util.getUserUid(userid, 0);
+            int end = Util.getUserUid(userid, Process.LAST_APPLICATION_UID);
+            Set<String> present = new HashSet<>();
+            for (XApp app : installed)
+                present.add(app.packageName + ":" + app.uid);
+            for (Map.Entry<String, Long> entry : changes.entrySet()) {
+                String key = entry.getKey();
+                int uid = Integer.parseInt(key.substring(key.lastIndexOf(':') + 1));
+                if (uid >= start && uid <= end && entry.getValue() > since && !present.contains(key))
+                    removed.add(key);
+            }
+        }
+
+        List<String> pairs = new ArrayList<>();
+        for (int i = offset; i < offset + limit && i < keys.size(); i++) {
+            String key = keys.get(i);
+            int sep = key.lastIndexOf(':');
+            pairs.add(key.substring(0, sep));
+            pairs.add(key.substring(sep + 1));
+        }
+
+        Cursor result = getApps(context, pairs.toArray(new String[0]), binary);
+
+        Bundle extras = new Bundle();
+        extras.putLong("generation", current);
+        extras.putInt("total", keys.size());
+        extras.putStringArray("removed", removed.toArray(new String[0]));
+        extras.putBoolean("full", full);
+        ((MatrixCursor) result).setExtras(extras);
+
+        Log.i(TAG, "App page offset=" + offset + " limit=" + limit + " since=" + since +
+                " total=" + keys.size() + " removed=" + removed.size() + " full=" + full);
+        return result;
+    }
+
+    private static void markChanged(String packageName, int uid) {
+        changes.put(packageName + ":" + uid, changeGeneration.incrementAndGet());
+    }
+
     private static Bundle assignHooks(Context context, Bundle extras) throws Throwable {
+        Bundle args = new Bundle();
+        args.putStringArrayList("hooks", extras.getStringArrayList("hooks"));
+        args.putStringArray("packageNames", new String[]{extras.getString("packageName")});
+        args.putIntArray("uids", new int[]{extras.getInt("uid")});
+        args.putBooleanArray("kills", new boolean[]{extras.getBoolean("kill")});
+        args.putBoolean("delete", extras.getBoolean("delete"));
+        return assignBulk(context, args);
+    }
+
+    // Targets: packageNames, uids and optional kills, hooks by id (hooks) and/or by group (groups)
+    private static Bundle assignBulk(Context context, Bundle extras) throws Throwable {
         enforcePermission(context);
 
-        List<String> hookids = extras.getStringArrayList("hooks");
-        String packageName = extras.getString("packageName");
-        int uid = extras.getInt("uid");
-        boolean delete = extras.getBoolean("delete");
-        boolean kill = extras.getBoolean("kill");
+        final String[] packageNames = extras.getStringArray("packageNames");
+        final int[] uids = extras.getIntArray("uids");
+        boolean[] kills = extras.getBooleanArray("kills");
+        final boolean delete = extras.getBoolean("delete");
+        if (packageNames == null || uids == null || packageNames.length != uids.length ||
+                (kills != null && kills.length != uids.length))
+            throw new IllegalArgumentException("targets invalid");
+
+        // Group selectors select the hooks available for each app, like initApp
+        // Deletes select all hooks of the groups, so that hooks excluded since they were assigned are removed too
+        List<String> ids = extras.getStringArrayList("hooks");
+        List<String> groups = extras.getStringArrayList("groups");
+        final List<List<String>> selected = new ArrayList<>();
+        int count = 0;
+        for (String packageName : packageNames) {
+            List<String> hookids = new ArrayList<>();
+            if (ids != null)
+                hookids.addAll(ids);
+            if (groups != null)
+                for (XHook hook : hooks.values())
+                    if (groups.contains(hook.getGroup()) && (delete || hook.isAvailable(packageName)) &&
+                            !hookids.contains(hook.getId()))
+                        hookids.add(hook.getId());
+            selected.add(hookids);
+            count += hookids.size();
+        }
 
-        dbLock.writeLock().lock();
-        try {
-            db.beginTransaction();
-            try {
-                for (String hookid : hookids)
-                    if (delete) {
-                        Log.i(TAG, packageName + ":" + uid + "/" + hookid + " deleted");
-                        long rows = db.delete("assignment",
-                                "hook = ? AND package = ? AND uid = ?",
-                                new String[]{hookid, packageName, Integer.toString(uid)});
-                        if (rows < 0)
-                            throw new Throwable("Error deleting assignment");
-                    } else {
-                        Log.i(TAG, packageName + ":" + uid + "/" + hookid + " added");
-                        ContentValues cv = new ContentValues();
-                        cv.put("package", packageName);
-                        cv.put("uid", uid);
-                        cv.put("hook", hookid);
-                        cv.put("installed", -1);
-                        cv.put("used", -1);
-                        cv.put("restricted", 0);
-                        cv.putNull("exception");
-                        long rows = db.insertWithOnConflict("assignment", null, cv, SQLiteDatabase.CONFLICT_REPLACE);
-                        if (rows < 0)
-                            throw new Throwable("Error inserting assignment");
-                    }
+        // Targets of each user are written to the database of that user
+        Map<Integer, List<Integer>> users = new LinkedHashMap<>();
+        for (int i = 0; i < uids.length; i++) {
+            int userid = Util.getUserId(uids[i]);
+            if (!users.containsKey(userid))
+                users.put(userid, new ArrayList<Integer>());
+            users.get(userid).add(i);
+        }
 
-                db.setTransactionSuccessful();
-            } finally {
-                db.endTransaction();
-            }
-        } finally {
-            dbLock.writeLock().unlock();
+        for (int userid : users.keySet()) {
+            final List<Integer> targets = users.get(userid);
+            write(new Write(getShard(context, userid)) {
+                @Override
+                void run() throws Throwable {
+                    SQLiteStatement statement = (delete
+                            ? shard.getStatement("DELETE FROM assigned" +
+                            " WHERE hook = " + cHookId + " AND package = " + cPackageId + " AND uid = ?")
+                            : null);
+                    for (int i : targets)
+                        for (String hookid : selected.get(i))
+                            if (delete) {
+                                statement.bindString(1, hookid);
+                                statement.bindString(2, packageNames[i]);
+                                statement.bindLong(3, uids[i]);
+                                statement.executeUpdateDelete();
+                            } else if (insertAssignment(shard, packageNames[i], uids[i], hookid) < 0)
+                                throw new Throwable("Error inserting assignment");
+                }
+
+                @Override
+                void committed() {
+                    for (int i : targets) {
+                        updateAssigned(shard, packageNames[i], uids[i], selected.get(i), delete);
+                        markChanged(packageNames[i], uids[i]);
+                    }
+                }
+            });
         }
 
-        if (kill)
-            forceStop(context, packageName, Util.getUserId(uid));
+        generation.incrementAndGet();
+
+        Log.i(TAG, (delete ? "Deleted" : "Added") + " assignments=" + count + " apps=" + packageNames.length);
+
+        // Stop affected apps after releasing the database
+        if (kills != null)
+            for (int i = 0; i < packageNames.length; i++)
+                if (kills[i])
+                    forceStop(context, packageNames[i], Util.getUserId(uids[i]));
 
         return new Bundle();
     }
 
-    private static Cursor getAssignedHooks(Context context, String[] selection) throws Throwable {
+    private static Cursor getAssignedHooks(Context context, String[] selection, boolean binary) throws Throwable {
         if (selection == null || selection.length != 2)
             throw new IllegalArgumentException("selection invalid");
 
         String packageName = selection[0];
         int uid = Integer.parseInt(selection[1]);
-        MatrixCursor result = new MatrixCursor(new String[]{"json"});
-
-        dbLock.readLock().lock();
-        try {
-            db.beginTransaction();
-            try {
-                Cursor cursor = null;
-                try {
-                    cursor = db.query(
-                            "assignment",
-                            new String[]{"hook"},
-                            "package = ? AND uid = ?",
-                            new String[]{packageName, Integer.toString(uid)},
-                            null, null, "hook");
-                    int colHook = cursor.getColumnIndex("hook");
-                    while (cursor.moveToNext()) {
-                        String hookid = cursor.getString(colHook);
-                        synchronized (lock) {
-                            if (hooks.containsKey(hookid)) {
-                                XHook hook = hooks.get(hookid);
-                                if (hook.isAvailable(packageName))
-                                    result.addRow(new String[]{hook.toJSON()});
-                            } else if (BuildConfig.DEBUG)
-                                Log.w(TAG, "Hook " + hookid + " not found");
-                        }
-                    }
-                } finally {
-                    if (cursor != null)
-                        cursor.close();
-                }
-
-                db.setTransactionSuccessful();
-            } finally {
-                db.endTransaction();
+        MatrixCursor result = new MatrixCursor(new String[]{binary ? XBinary.cColumn : "json"});
+        XBinary.Writer writer = (binary ? new XBinary.Writer() : null);
+
+        // Served from the in-memory assignment index
+        Map<String, XHook> snapshot = hooks;
+        XShard shard = findShard(context, Util.getUserId(uid));
+        Set<String> assigned = (shard == null ? null : shard.assignments.get(packageName + ":" + uid));
+        if (assigned != null)
+            for (String hookid : assigned) {
+                XHook hook = snapshot.get(hookid);
+                if (hook != null) {
+                    if (hook.isAvailable(packageName))
+                        if (binary) {
+                            hook.toBinary(writer);
+                            result.addRow(new Object[]{writer.row()});
+                        } else
+                            result.addRow(new Object[]{hook.toJSONObject().toString()});
+                } else if (BuildConfig.DEBUG)
+                    Log.w(TAG, "Hook " + hookid + " not found");
             }
-        } finally {
-            dbLock.readLock().unlock();
-        }
 
         return result;
     }
@@ -500,44 +743,149 @@ class XProvider {
         int userid = Util.getUserId(uid);
         MatrixCursor result = new MatrixCursor(new String[]{"name", "value"});
 
-        dbLock.readLock().lock();
-        try {
-            db.beginTransaction();
-            try {
-                Cursor cursor = null;
-                try {
-                    cursor = db.query(
-                            "setting",
-                            new String[]{"name", "value"},
-                            "user = ? AND category = ?",
-                            new String[]{Integer.toString(userid), packageName},
-                            null, null, null);
-                    while (cursor.moveToNext())
-                        result.addRow(new String[]{cursor.getString(0), cursor.getString(1)});
-                } finally {
-                    if (cursor != null)
-                        cursor.close();
-                }
+        XShard shard = findShard(context, userid);
+        if (shard == null)
+            return result;
 
-                db.setTransactionSuccessful();
-            } finally {
-                db.endTransaction();
-            }
+        Cursor cursor = null;
+        shard.acquire();
+        try {
+            cursor = shard.db.query(
+                    "setting",
+                    new String[]{"name", "value"},
+                    "user = ? AND category = ?",
+                    new String[]{Integer.toString(userid), packageName},
+                    null, null, null);
+            while (cursor.moveToNext())
+                result.addRow(new String[]{cursor.getString(0), cursor.getString(1)});
         } finally {
-            dbLock.readLock().unlock();
+            if (cursor != null)
+                cursor.close();
+            shard.release();
         }
 
         return result;
     }
 
-    @SuppressLint("MissingPermission")
-    private static Bundle report(Context context, Bundle extras) throws Throwable {
-        String hookid = extras.getString("hook");
+    // Everything an app needs at process start in one round trip
+    private static Bundle getBootstrap(Context context, Bundle extras) throws Throwable {
         String packageName = extras.getString("packageName");
         int uid = extras.getInt("uid");
-        String event = extras.getString("event");
-        long time = extras.getLong("time");
-        Bundle data = extras.getBundle("data");
+        String[] cached = extras.getStringArray("cached");
+        boolean shared = extras.getBoolean("snapshot");
+        int userid = Util.getUserId(uid);
+        XShard shard = findShard(context, userid);
+        if (shard == null) {
+            // Nothing is assigned in users which do not exist
+            XBinary.Writer writer = new XBinary.Writer();
+            writer.writeInt(0);
+            Bundle result = new Bundle();
+            result.putLong("generation", generation.get());
+            result.putByteArray("hooks", writer.row());
+            result.putStringArray("names", new String[0]);
+            result.putStringArray("values", new String[0]);
+            return result;
+        }
+
+        // Read first, so that changes made while building the result bump it again
+        long current = generation.get();
+
+        // Get settings
+        Map<String, String> global = new HashMap<>();
+        Map<String, String> settings = new HashMap<>();
+        Cursor cursor = null;
+        shard.acquire();
+        try {
+            cursor = shard.db.query(
+                    "setting",
+                    new String[]{"category", "name", "value"},
+                    "user = ? AND category IN (?, ?)",
+                    new String[]{Integer.toString(userid), "global", packageName},
+                    null, null, null);
+            while (cursor.moveToNext())
+                if ("global".equals(cursor.getString(0)))
+                    global.put(cursor.getString(1), cursor.getString(2));
+                else
+                    settings.put(cursor.getString(1), cursor.getString(2));
+        } finally {
+            if (cursor != null)
+                cursor.close();
+            shard.release();
+        }
+
+        Bundle result = new Bundle();
+        result.putLong("generation", current);
+
+        // Hooks and global settings are mapped from the shared snapshot of the user
+        if (shared && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1)
+            try {
+                XSnapshot.attach(result, packageName, uid, current, hooks, global,
+                        shard.assignments.get(packageName + ":" + uid));
+                result.putStringArray("names", settings.keySet().toArray(new String[0]));
+                result.putStringArray("values", settings.values().toArray(new String[0]));
+                return result;
+            } catch (Throwable ex) {
+                Log.e(TAG, Log.getStackTraceString(ex));
+            }
+
+        // Get assigned hooks
+        List<XHook> assigned = new ArrayList<>();
+        Map<String, XHook> snapshot = hooks;
+        Set<String> hookids = shard.assignments.get(packageName + ":" + uid);
+        if (hookids != null)
+            for (String hookid : hookids) {
+                XHook hook = snapshot.get(hookid);
+                if (hook != null) {
+                    if (hook.isAvailable(packageName))
+                        assigned.add(hook);
+                } else if (BuildConfig.DEBUG)
+                    Log.w(TAG, "Hook " + hookid + " not found");
+            }
+
+        // Scripts the app has cached are sent as hash only
+        Set<String> hashes = new HashSet<>();
+        if (cached != null)
+            Collections.addAll(hashes, cached);
+
+        XBinary.Writer writer = new XBinary.Writer();
+        writer.writeInt(assigned.size());
+        for (XHook hook : assigned)
+            hook.toBinary(writer, !hashes.contains(hook.getLuaHash()));
+
+        // Package settings override global settings
+        global.putAll(settings);
+
+        result.putByteArray("hooks", writer.row());
+        result.putStringArray("names", global.keySet().toArray(new String[0]));
+        result.putStringArray("values", global.values().toArray(new String[0]));
+        return result;
+    }
+
+    private static Bundle getScripts(Context context, Bundle extras) throws Throwable {
+        String[] hashes = extras.getStringArray("hashes");
+        if (hashes == null)
+            throw new IllegalArgumentException("hashes missing");
+
+        Map<String, String> scripts = new HashMap<>();
+        for (XHook hook : hooks.values())
+            scripts.put(hook.getLuaHash(), hook.getLuaScript());
+
+        String[] result = new String[hashes.length];
+        for (int i = 0; i < hashes.length; i++)
+            result[i] = scripts.get(hashes[i]);
+
+        Bundle bundle = new Bundle();
+        bundle.putStringArray("scripts", result);
+        return bundle;
+    }
+
+    private static Bundle report(final Context context, Bundle extras) throws Throwable {
+        final String hookid = extras.getString("hook");
+        final String packageName = extras.getString("packageName");
+        final int uid = extras.getInt("uid");
+        final String event = extras.getString("event");
+        final long time = extras.getLong("time");
+        final Bundle data = extras.getBundle("data");
 
         if (uid != Binder.getCallingUid())
             throw new SecurityException();
@@ -552,123 +900,266 @@ class XProvider {
         Log.i(TAG, "Hook " + hookid + " pkg=" + packageName + ":" + uid + " event=" + event + sb.toString());
 
         // Store event
-        dbLock.writeLock().lock();
-        try {
-            db.beginTransaction();
-            try {
-                ContentValues cv = new ContentValues();
-                if ("install".equals(event))
-                    cv.put("installed", time);
-                else if ("use".equals(event)) {
-                    cv.put("used", time);
-                    if (data.containsKey("restricted"))
-                        cv.put("restricted", data.getInt("restricted"));
+        post(new Write(getShard(context, Util.getUserId(uid))) {
+            @Override
+            void run() throws Throwable {
+                // One compiled statement per combination of updated columns
+                boolean install = "install".equals(event);
+                boolean use = "use".equals(event);
+                boolean restricted = (use && data.containsKey("restricted"));
+                boolean exception = data.containsKey("exception");
+
+                StringBuilder sql = new StringBuilder();
+                if (install)
+                    sql.append(", installed = ?");
+                else if (use)
+                    sql.append(", used = ?");
+                if (restricted)
+                    sql.append(", restricted = ?");
+                if (exception)
+                    sql.append(", exception = (SELECT id FROM intern_exception WHERE text = ?)");
+
+                // Exceptions are stored once
+                if (exception && data.getString("exception") != null) {
+                    SQLiteStatement intern = shard.getStatement("INSERT OR IGNORE INTO intern_exception (text) VALUES (?)");
+                    intern.bindString(1, data.getString("exception"));
+                    intern.execute();
                 }
-                if (data.containsKey("exception"))
-                    cv.put("exception", data.getString("exception"));
 
-                long rows = db.update("assignment", cv,
-                        "package = ? AND uid = ? AND hook = ?",
-                        new String[]{packageName, Integer.toString(uid), hookid});
-                if (rows < 1)
-                    Log.i(TAG, packageName + ":" + uid + "/" + hookid + " not updated");
+                if (sql.length() > 0) {
+                    // Rows last written in an earlier boot epoch are reset on the first write
+                    if (!install)
+                        sql.append(", installed = CASE WHEN epoch = " + cEpoch + " THEN installed ELSE -1 END");
+                    if (!exception)
+                        sql.append(", exception = CASE WHEN epoch = " + cEpoch + " THEN exception ELSE NULL END");
+                    sql.append(", epoch = " + cEpoch);
+
+                    SQLiteStatement statement = shard.getStatement("UPDATE assigned SET " + sql.substring(2) +
+                            " WHERE package = " + cPackageId + " AND uid = ? AND hook = " + cHookId);
+                    int index = 1;
+                    if (install || use)
+                        statement.bindLong(index++, time);
+                    if (restricted)
+                        statement.bindLong(index++, data.getInt("restricted"));
+                    if (exception) {
+                        String ex = data.getString("exception");
+                        if (ex == null)
+                            statement.bindNull(index++);
+                        else
+                            statement.bindString(index++, ex);
+                    }
+                    statement.bindString(index++, packageName);
+                    statement.bindLong(index++, uid);
+                    statement.bindString(index, hookid);
 
-                db.setTransactionSuccessful();
-            } finally {
-                db.endTransaction();
+                    int rows = statement.executeUpdateDelete();
+                    if (rows < 1)
+                        Log.i(TAG, packageName + ":" + uid + "/" + hookid + " not updated");
+                }
             }
-        } finally {
-            dbLock.writeLock().unlock();
-        }
 
-        long ident = Binder.clearCallingIdentity();
-        try {
-            // Notify data changed
-            Intent intent = new Intent();
-            intent.setAction(ACTION_DATA_CHANGED);
-            intent.setPackage(XProvider.class.getPackage().getName());
-            intent.putExtra("packageName", packageName);
-            intent.putExtra("uid", uid);
-            context.sendBroadcastAsUser(intent, Util.getUserHandle(uid));
-
-            Context ctx = Util.createContextForUser(context, Util.getUserId(uid));
-            PackageManager pm = ctx.getPackageManager();
-            String self = XProvider.class.getPackage().getName();
-            Resources resources = pm.getResourcesForApplication(self);
-
-            // Notify usage
-            if ("use".equals(event) && data.getInt("restricted", 0) == 1) {
-                // Get hook
-                XHook hook = null;
-                synchronized (lock) {
-                    if (hooks.containsKey(hookid))
-                        hook = hooks.get(hookid);
+            // Clients reloading on the broadcast should see the event, the writer thread has no caller identity
+            @Override
+            void committed() {
+                try {
+                    notifyDataChanged(context, packageName, uid);
+                } catch (Throwable ex) {
+                    Log.e(TAG, Log.getStackTraceString(ex));
                 }
+            }
+        });
 
-                if (hook != null && hook.doNotify()) {
-                    // Get group name
-                    String group = hookid;
-                    if (hook != null) {
-                        String name = hook.getGroup().toLowerCase().replaceAll("[^a-z]", "_");
-                        int resId = resources.getIdentifier("group_" + name, "string", self);
-                        if (resId != 0)
-                            group = resources.getString(resId);
+        // Get hook
+        XHook hook = hooks.get(hookid);
+
+        // Notify usage
+        if ("use".equals(event) && data.getInt("restricted", 0) == 1)
+            if (hook != null && hook.doNotify())
+                XNotifier.notifyUsage(context, hook, packageName, uid);
+
+        // Notify exception
+        if (data.containsKey("exception"))
+            XNotifier.notifyException(context, hook, hookid, packageName, uid);
+
+        return new Bundle();
+    }
+
+    private static Bundle reportUsage(Context context, Bundle extras) throws Throwable {
+        final String packageName = extras.getString("packageName");
+        final int uid = extras.getInt("uid");
+        final String[] hookids = extras.getStringArray("hooks");
+        final long[] calls = extras.getLongArray("calls");
+        final long[] restricted = extras.getLongArray("restricted");
+        final long[] errors = extras.getLongArray("errors");
+        final long[] duration = extras.getLongArray("duration");
+        final long[] durationMax = extras.getLongArray("duration_max");
+
+        if (uid != Binder.getCallingUid())
+            throw new SecurityException();
+
+        if (hookids == null || calls == null || restricted == null || errors == null ||
+                duration == null || durationMax == null)
+            throw new IllegalArgumentException("counters missing");
+        final int count = hookids.length;
+        if (calls.length != count || restricted.length != count || errors.length != count ||
+                duration.length != count || durationMax.length != count)
+            throw new IllegalArgumentException("counters invalid");
+
+        Log.i(TAG, "Usage pkg=" + packageName + ":" + uid + " hooks=" + count);
+        final long now = System.currentTimeMillis();
+
+        // Merge counters
+        post(new Write(getShard(context, Util.getUserId(uid))) {
+            @Override
+            void run() throws Throwable {
+                SQLiteStatement usageInsert = shard.getStatement("INSERT OR IGNORE INTO usage" +
+                        " (package, uid, hook, calls, restricted, errors, duration, duration_max)" +
+                        " VALUES (?, ?, ?, 0, 0, 0, 0, 0)");
+                SQLiteStatement usageUpdate = shard.getStatement("UPDATE usage SET" +
+                        " calls = calls + ?, restricted = restricted + ?, errors = errors + ?," +
+                        " duration = duration + ?, duration_max = MAX(duration_max, ?)" +
+                        " WHERE package = ? AND uid = ? AND hook = ?");
+                SQLiteStatement historyInsert = shard.getStatement("INSERT OR IGNORE INTO history" +
+                        " (package, uid, hook, resolution, time, calls, restricted, errors, duration)" +
+                        " VALUES (?, ?, ?, ?, ?, 0, 0, 0, 0)");
+                SQLiteStatement historyUpdate = shard.getStatement("UPDATE history SET" +
+                        " calls = calls + ?, restricted = restricted + ?, errors = errors + ?," +
+                        " duration = duration + ?" +
+                        " WHERE package = ? AND uid = ? AND hook = ? AND resolution = ? AND time = ?");
+
+                for (int i = 0; i < count; i++) {
+                    usageInsert.bindString(1, packageName);
+                    usageInsert.bindLong(2, uid);
+                    usageInsert.bindString(3, hookids[i]);
+                    usageInsert.executeInsert();
+
+                    usageUpdate.bindLong(1, calls[i]);
+                    usageUpdate.bindLong(2, restricted[i]);
+                    usageUpdate.bindLong(3, errors[i]);
+                    usageUpdate.bindLong(4, duration[i]);
+                    usageUpdate.bindLong(5, durationMax[i]);
+                    usageUpdate.bindString(6, packageName);
+                    usageUpdate.bindLong(7, uid);
+                    usageUpdate.bindString(8, hookids[i]);
+                    usageUpdate.executeUpdateDelete();
+
+                    // Roll up into history buckets
+                    for (long resolution : cHistoryResolutions) {
+                        long bucket = now - now % resolution;
+
+                        historyInsert.bindString(1, packageName);
+                        historyInsert.bindLong(2, uid);
+                        historyInsert.bindString(3, hookids[i]);
+                        historyInsert.bindLong(4, resolution);
+                        historyInsert.bindLong(5, bucket);
+                        historyInsert.executeInsert();
+
+                        historyUpdate.bindLong(1, calls[i]);
+                        historyUpdate.bindLong(2, restricted[i]);
+                        historyUpdate.bindLong(3, errors[i]);
+                        historyUpdate.bindLong(4, duration[i]);
+                        historyUpdate.bindString(5, packageName);
+                        historyUpdate.bindLong(6, uid);
+                        historyUpdate.bindString(7, hookids[i]);
+                        historyUpdate.bindLong(8, resolution);
+                        historyUpdate.bindLong(9, bucket);
+                        historyUpdate.executeUpdateDelete();
                     }
+                }
 
-                    // Build notification
-                    Notification.Builder builder = new Notification.Builder(ctx);
-                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
-                        builder.setChannelId(cChannelName);
-                    builder.setSmallIcon(android.R.drawable.ic_dialog_info);
-                    builder.setContentTitle(resources.getString(R.string.msg_usage, group));
-                    builder.setContentText(pm.getApplicationLabel(pm.getApplicationInfo(packageName, 0)));
-                    if (BuildConfig.DEBUG)
-                        builder.setSubText(hookid);
-
-                    builder.setPriority(Notification.PRIORITY_DEFAULT);
-                    builder.setCategory(Notification.CATEGORY_STATUS);
-                    builder.setVisibility(Notification.VISIBILITY_SECRET);
-
-                    // Main
-                    Intent main = ctx.getPackageManager().getLaunchIntentForPackage(self);
-                    main.putExtra(ActivityMain.EXTRA_SEARCH_PACKAGE, packageName);
-                    PendingIntent pi = PendingIntent.getActivity(ctx, uid, main, 0);
-                    builder.setContentIntent(pi);
-
-                    builder.setAutoCancel(true);
-
-                    Util.notifyAsUser(ctx, "xlua_usage", uid, builder.build(), Util.getUserId(uid));
+                // Expire old history
+                if (now - shard.lastHistoryCleanup > cHistoryCleanupInterval) {
+                    shard.lastHistoryCleanup = now;
+                    for (int r = 0; r < cHistoryResolutions.length; r++) {
+                        long rows = shard.db.delete("history", "resolution = ? AND time < ?",
+                                new String[]{Long.toString(cHistoryResolutions[r]),
+                                        Long.toString(now - cHistoryRetention[r])});
+                        Log.i(TAG, "Expired history user=" + shard.userid +
+                                " resolution=" + cHistoryResolutions[r] + " rows=" + rows);
+                    }
                 }
             }
+        });
 
-            // Notify exception
-            if (data.containsKey("exception")) {
-                Notification.Builder builder = new Notification.Builder(ctx);
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
-                    builder.setChannelId(cChannelName);
-                builder.setSmallIcon(android.R.drawable.ic_dialog_alert);
-                builder.setContentTitle(resources.getString(R.string.msg_exception, hookid));
-                builder.setContentText(pm.getApplicationLabel(pm.getApplicationInfo(packageName, 0)));
+        // Counter merges are frequent and do not broadcast data changed, the app list shows them on its next load
+        return new Bundle();
+    }
 
-                builder.setPriority(Notification.PRIORITY_HIGH);
-                builder.setCategory(Notification.CATEGORY_STATUS);
-                builder.setVisibility(Notification.VISIBILITY_SECRET);
+    private static Cursor getHistory(Context context, String[] selection) throws Throwable {
+        // package name or empty, uid, hook or empty, resolution, from, to
+        if (selection == null || selection.length != 6)
+            throw new IllegalArgumentException("selection invalid");
 
-                // Main
-                Intent main = ctx.getPackageManager().getLaunchIntentForPackage(self);
-                main.putExtra(ActivityMain.EXTRA_SEARCH_PACKAGE, packageName);
-                PendingIntent pi = PendingIntent.getActivity(ctx, uid, main, 0);
-                builder.setContentIntent(pi);
+        String packageName = selection[0];
+        String hookid = selection[2];
+        long resolution = getHistoryResolution(selection[3]);
+        long from = Long.parseLong(selection[4]);
+        long to = Long.parseLong(selection[5]);
+
+        // Restrict to the apps of the calling user
+        int userid = Util.getUserId(Binder.getCallingUid());
+        int start = Util.getUserUid(userid, 0);
+        int end = Util.getUserUid(userid, Process.LAST_APPLICATION_UID);
+
+        List<String> args = new ArrayList<>();
+        StringBuilder where = new StringBuilder("resolution = ? AND time >= ? AND time <= ?");
+        args.add(Long.toString(resolution));
+        args.add(Long.toString(from - from % resolution));
+        args.add(Long.toString(to));
+        if (TextUtils.isEmpty(packageName)) {
+            if (TextUtils.isEmpty(hookid))
+                throw new IllegalArgumentException("package or hook missing");
+            where.append(" AND uid >= ? AND uid <= ?");
+            args.add(Integer.toString(start));
+            args.add(Integer.toString(end));
+        } else {
+            // The uid is only given together with a package name
+            int uid = Integer.parseInt(selection[1]);
+            if (uid < start || uid > end)
+                throw new SecurityException();
+            where.append(" AND package = ? AND uid = ?");
+            args.add(packageName);
+            args.add(Integer.toString(uid));
+        }
+        if (!TextUtils.isEmpty(hookid)) {
+            where.append(" AND hook = ?");
+            args.add(hookid);
+        }
 
-                builder.setAutoCancel(true);
+        MatrixCursor result = new MatrixCursor(new String[]{"hook", "time", "calls", "restricted", "errors", "duration"});
 
-                Util.notifyAsUser(ctx, "xlua_exception", uid, builder.build(), Util.getUserId(uid));
-            }
+        XShard shard = getShard(context, userid);
+        Cursor cursor = null;
+        shard.acquire();
+        try {
+            // Sum over apps when selecting by hook only
+            cursor = shard.db.query(
+                    "history",
+                    new String[]{"hook", "time", "SUM(calls)", "SUM(restricted)", "SUM(errors)", "SUM(duration)"},
+                    where.toString(), args.toArray(new String[0]),
+                    "hook, time", null, "time, hook");
+            while (cursor.moveToNext())
+                result.addRow(new Object[]{
+                        cursor.getString(0), cursor.getLong(1),
+                        cursor.getLong(2), cursor.getLong(3), cursor.getLong(4), cursor.getLong(5)});
         } finally {
-            Binder.restoreCallingIdentity(ident);
+            if (cursor != null)
+                cursor.close();
+            shard.release();
         }
 
-        return new Bundle();
+        return result;
+    }
+
+    private static long getHistoryResolution(String name) {
+        if ("minute".equals(name))
+            return cHistoryResolutions[0];
+        else if ("hour".equals(name))
+            return cHistoryResolutions[1];
+        else if ("day".equals(name))
+            return cHistoryResolutions[2];
+        else
+            throw new IllegalArgumentException("resolution invalid");
     }
 
     private static Bundle getSetting(Context context, Bundle extras) throws Throwable {
@@ -676,31 +1167,7 @@ class XProvider {
         String category = extras.getString("category");
         String name = extras.getString("name");
 
-        String value = null;
-        dbLock.readLock().lock();
-        try {
-            db.beginTransaction();
-            try {
-                Cursor cursor = null;
-                try {
-                    cursor = db.query("setting", new String[]{"value"},
-                            "user = ? AND category = ? AND name = ?",
-                            new String[]{Integer.toString(userid), category, name},
-                            null, null, null);
-                    if (cursor.moveToNext())
-                        value = (cursor.isNull(0) ? null : cursor.getString(0));
-                } finally {
-                    if (cursor != null)
-                        cursor.close();
-                }
-
-                db.setTransactionSuccessful();
-            } finally {
-                db.endTransaction();
-            }
-        } finally {
-            dbLock.readLock().unlock();
-        }
+        String value = getSettingValue(context, userid, category, name);
 
         Log.i(TAG, "Get setting " + userid + ":" + category + ":" + name + "=" + value);
         Bundle result = new Bundle();
@@ -711,38 +1178,41 @@ class XProvider {
     private static Bundle putSetting(Context context, Bundle extras) throws Throwable {
         enforcePermission(context);
 
-        int userid = extras.getInt("user");
-        String category = extras.getString("category");
-        String name = extras.getString("name");
-        String value = extras.getString("value");
+        final int userid = extras.getInt("user");
+        final String category = extras.getString("category");
+        final String name = extras.getString("name");
+        final String value = extras.getString("value");
         boolean kill = extras.getBoolean("kill", false);
         Log.i(TAG, "Put setting " + userid + ":" + category + " " + name + "=" + value);
 
-        dbLock.writeLock().lock();
-        try {
-            db.beginTransaction();
-            try {
+        write(new Write(getShard(context, userid)) {
+            @Override
+            void run() throws Throwable {
                 if (value == null) {
-                    db.delete(
-                            "setting",
-                            "user = ? AND category = ? AND name = ?",
-                            new String[]{Integer.toString(userid), category, name});
+                    SQLiteStatement statement = shard.getStatement(
+                            "DELETE FROM setting WHERE user = ? AND category = ? AND name = ?");
+                    statement.bindLong(1, userid);
+                    statement.bindString(2, category);
+                    statement.bindString(3, name);
+                    statement.executeUpdateDelete();
                 } else {
-                    ContentValues cv = new ContentValues();
-                    cv.put("user", userid);
-                    cv.put("category", category);
-                    cv.put("name", name);
-                    cv.put("value", value);
-                    db.insertWithOnConflict("setting", null, cv, SQLiteDatabase.CONFLICT_REPLACE);
+                    SQLiteStatement statement = shard.getStatement(
+                            "INSERT OR REPLACE INTO setting (user, category, name, value) VALUES (?, ?, ?, ?)");
+                    statement.bindLong(1, userid);
+                    statement.bindString(2, category);
+                    statement.bindString(3, name);
+                    statement.bindString(4, value);
+                    statement.executeInsert();
                 }
+            }
+        });
 
-                db.setTransactionSuccessful();
-            } finally {
-                db.endTransaction();
+        generation.incrementAndGet();
+
+        if ("global".equals(category) && "refresh_window".equals(name))
+            synchronized (refreshWindow) {
+                refreshWindow.remove(userid);
             }
-        } finally {
-            dbLock.writeLock().unlock();
-        }
 
         if (kill)
             forceStop(context, category, userid);
@@ -753,44 +1223,33 @@ class XProvider {
     private static Bundle initApp(Context context, Bundle extras) throws Throwable {
         enforcePermission(context);
 
-        String packageName = extras.getString("packageName");
-        int uid = extras.getInt("uid");
+        final String packageName = extras.getString("packageName");
+        final int uid = extras.getInt("uid");
         boolean kill = extras.getBoolean("kill", false);
 
         int userid = Util.getUserId(uid);
 
-        List<String> hookids = new ArrayList<>();
-        synchronized (lock) {
-            for (XHook hook : hooks.values())
-                if (hook.isAvailable(packageName))
-                    hookids.add(hook.getId());
-        }
+        final List<String> hookids = new ArrayList<>();
+        for (XHook hook : hooks.values())
+            if (hook.isAvailable(packageName))
+                hookids.add(hook.getId());
 
-        dbLock.writeLock().lock();
-        try {
-            db.beginTransaction();
-            try {
-                for (String hookid : hookids) {
-                    ContentValues cv = new ContentValues();
-                    cv.put("package", packageName);
-                    cv.put("uid", uid);
-                    cv.put("hook", hookid);
-                    cv.put("installed", -1);
-                    cv.put("used", -1);
-                    cv.put("restricted", 0);
-                    cv.putNull("exception");
-                    long rows = db.insertWithOnConflict("assignment", null, cv, SQLiteDatabase.CONFLICT_REPLACE);
-                    if (rows < 0)
+        write(new Write(getShard(context, userid)) {
+            @Override
+            void run() throws Throwable {
+                for (String hookid : hookids)
+                    if (insertAssignment(shard, packageName, uid, hookid) < 0)
                         throw new Throwable("Error inserting assignment");
-                }
+            }
 
-                db.setTransactionSuccessful();
-            } finally {
-                db.endTransaction();
+            @Override
+            void committed() {
+                updateAssigned(shard, packageName, uid, hookids, false);
+                markChanged(packageName, uid);
             }
-        } finally {
-            dbLock.writeLock().unlock();
-        }
+        });
+
+        generation.incrementAndGet();
 
         if (kill)
             forceStop(context, packageName, userid);
@@ -803,42 +1262,65 @@ class XProvider {
     private static Bundle clearApp(Context context, Bundle extras) throws Throwable {
         enforcePermission(context);
 
-        String packageName = extras.getString("packageName");
-        int uid = extras.getInt("uid");
+        final String packageName = extras.getString("packageName");
+        final int uid = extras.getInt("uid");
         boolean kill = extras.getBoolean("kill", false);
-        boolean full = extras.getBoolean("settings", false);
+        final boolean full = extras.getBoolean("settings", false);
 
-        long assignments;
-        long settings = 0;
-        int userid = Util.getUserId(uid);
+        final int userid = Util.getUserId(uid);
+        final long[] rows = new long[2]; // assignments, settings
 
-        dbLock.writeLock().lock();
-        try {
-            db.beginTransaction();
-            try {
-                assignments = db.delete(
-                        "assignment",
+        // Queued behind reports already posted, so that those cannot recreate the rows afterwards
+        write(new Write(getShard(context, userid)) {
+            @Override
+            void run() throws Throwable {
+                rows[0] = shard.db.delete(
+                        "assigned",
+                        "package = " + cPackageId + " AND uid = ?",
+                        new String[]{packageName, Integer.toString(uid)});
+                shard.db.delete(
+                        "usage",
+                        "package = ? AND uid = ?",
+                        new String[]{packageName, Integer.toString(uid)});
+                shard.db.delete(
+                        "history",
                         "package = ? AND uid = ?",
                         new String[]{packageName, Integer.toString(uid)});
                 if (full)
-                    settings = db.delete(
+                    rows[1] = shard.db.delete(
                             "setting",
                             "user = ? AND category = ?",
                             new String[]{Integer.toString(userid), packageName});
+            }
 
-                db.setTransactionSuccessful();
-            } finally {
-                db.endTransaction();
+            @Override
+            void committed() {
+                shard.assignments.remove(packageName + ":" + uid);
+                markChanged(packageName, uid);
             }
-        } finally {
-            dbLock.writeLock().unlock();
-        }
+        });
+
+        generation.incrementAndGet();
 
         if (kill)
             forceStop(context, packageName, userid);
 
         Log.i(TAG, "Cleared app pkg=" + packageName + " uid=" + uid +
-                " assignments=" + assignments + " settings=" + settings);
+                " assignments=" + rows[0] + " settings=" + rows[1]);
+
+        return new Bundle();
+    }
+
+    private static Bundle packageChanged(Context context, Bundle extras) throws Throwable {
+        enforcePermission(context);
+
+        String packageName = extras.getString("packageName");
+        int uid = extras.getInt("uid");
+
+        verdicts.clear();
+        XPackages.update(context, Util.getUserId(uid), packageName);
+        XNotifier.invalidate(packageName, uid);
+        markChanged(packageName, uid);
 
         return new Bundle();
     }
@@ -849,58 +1331,222 @@ class XProvider {
         int userid = extras.getInt("user");
         Log.i(TAG, "Clearing data user=" + userid);
 
-        dbLock.writeLock().lock();
-        try {
-            db.beginTransaction();
-            try {
-                if (userid == 0) {
-                    db.delete("assignment", null, null);
-                    db.delete("setting", null, null);
-                } else {
-                    int start = Util.getUserUid(userid, 0);
-                    int end = Util.getUserUid(userid, Process.LAST_APPLICATION_UID);
-                    db.delete(
-                            "assignment",
-                            "uid >= ? AND uid <= ?",
-                            new String[]{Integer.toString(start), Integer.toString(end)});
-                    db.delete(
-                            "setting",
-                            "user = ?",
-                            new String[]{Integer.toString(userid)});
+        if (userid == 0) {
+            // Queued behind reports already posted, so that those cannot recreate the rows afterwards
+            write(new Write(getShard(context, 0)) {
+                @Override
+                void run() throws Throwable {
+                    shard.db.delete("assigned", null, null);
+                    shard.db.delete("usage", null, null);
+                    shard.db.delete("history", null, null);
+                    shard.db.delete("setting", null, null);
                 }
 
-                db.setTransactionSuccessful();
-            } finally {
-                db.endTransaction();
+                @Override
+                void committed() {
+                    shard.assignments.clear();
+                }
+            });
+
+            // Clearing the owner clears all users
+            File[] files = getDatabaseDir().listFiles();
+            if (files != null)
+                for (File file : files) {
+                    String name = file.getName();
+                    if (name.matches("xlua_\\d+\\.db"))
+                        deleteShard(context, Integer.parseInt(name.substring(5, name.length() - 3)));
+                }
+        } else
+            deleteShard(context, userid);
+
+        generation.incrementAndGet();
+
+        synchronized (refreshWindow) {
+            refreshWindow.remove(userid);
+        }
+
+        // Clients need to reload everything
+        resetGeneration = changeGeneration.incrementAndGet();
+
+        return new Bundle();
+    }
+
+    private static Bundle getStats(Context context, Bundle extras) throws Throwable {
+        enforcePermission(context);
+
+        Map<String, Long> counters = new HashMap<>();
+        counters.put("verdict.hits", verdictHits.get());
+        counters.put("verdict.misses", verdictMisses.get());
+        counters.put("patterns.hits", XPatterns.hits.get());
+        counters.put("patterns.misses", XPatterns.misses.get());
+        counters.put("packages.hits", XPackages.hits.get());
+        counters.put("packages.loads", XPackages.loads.get());
+        counters.put("packages.updates", XPackages.updates.get());
+        counters.put("hooks.copied", hooksCopied.get());
+        counters.put("writer.writes", writesCommitted.get());
+        counters.put("writer.failed", writesFailed.get());
+        counters.put("writer.dropped", writesDropped.get());
+        counters.put("writer.commits", commits.get());
+        counters.put("writer.queued", (long) writes.size());
+        for (XShard shard : shards.values()) {
+            String prefix = "user." + shard.userid + ".";
+            counters.put(prefix + "locked", shard.locked.get());
+            counters.put(prefix + "contended", shard.contended.get());
+            counters.put(prefix + "waited_ms", shard.waited.get());
+            counters.put(prefix + "transactions", shard.transactions.get());
+            counters.put(prefix + "sqlite_us", shard.sqlite.get());
+        }
+
+        return XStats.get(counters);
+    }
+
+    private static void notifyDataChanged(Context context, String packageName, int uid) throws Throwable {
+        markChanged(packageName, uid);
+
+        int userid = Util.getUserId(uid);
+        Long window;
+        synchronized (refreshWindow) {
+            window = refreshWindow.get(userid);
+        }
+        if (window == null) {
+            window = getSettingLong(context, userid, "global", "refresh_window", cDefaultRefreshWindow);
+            synchronized (refreshWindow) {
+                refreshWindow.put(userid, window);
+            }
+        }
+        XNotifier.notifyDataChanged(context, packageName, uid, window);
+    }
+
+    private static long getSettingLong(Context context, int userid, String category, String name, long def) throws Throwable {
+        String value = getSettingValue(context, userid, category, name);
+
+        try {
+            return (value == null ? def : Long.parseLong(value));
+        } catch (NumberFormatException ignored) {
+            return def;
+        }
+    }
+
+    private static String getSettingValue(Context context, int userid, String category, String name) throws Throwable {
+        XShard shard = findShard(context, userid);
+        if (shard == null)
+            return null;
+
+        shard.acquire();
+        try {
+            // Readers share the compiled statement, so bind and execute atomically
+            SQLiteStatement statement = shard.getStatement(
+                    "SELECT value FROM setting WHERE user = ? AND category = ? AND name = ?");
+            synchronized (statement) {
+                statement.bindLong(1, userid);
+                statement.bindString(2, category);
+                statement.bindString(3, name);
+                try {
+                    return statement.simpleQueryForString();
+                } catch (SQLiteDoneException ignored) {
+                    return null;
+                } finally {
+                    statement.clearBindings();
+                }
             }
         } finally {
-            dbLock.writeLock().unlock();
+            shard.release();
         }
+    }
 
-        return new Bundle();
+    private static long insertAssignment(XShard shard, String packageName, int uid, String hookid) {
+        SQLiteStatement ipackage = shard.getStatement("INSERT OR IGNORE INTO intern_package (name) VALUES (?)");
+        ipackage.bindString(1, packageName);
+        ipackage.execute();
+
+        SQLiteStatement ihook = shard.getStatement("INSERT OR IGNORE INTO intern_hook (name) VALUES (?)");
+        ihook.bindString(1, hookid);
+        ihook.execute();
+
+        SQLiteStatement statement = shard.getStatement("INSERT OR REPLACE INTO assigned" +
+                " (package, uid, hook, installed, used, restricted, exception, epoch)" +
+                " VALUES (" + cPackageId + ", ?, " + cHookId + ", -1, -1, 0, NULL, " + cEpoch + ")");
+        statement.bindString(1, packageName);
+        statement.bindLong(2, uid);
+        statement.bindString(3, hookid);
+        return statement.executeInsert();
     }
 
     private static void enforcePermission(Context context) throws SecurityException {
         int cuid = Util.getAppId(Binder.getCallingUid());
 
-        // Access package manager as system user
-        long ident = Binder.clearCallingIdentity();
-        try {
-            // Allow system
-            if (cuid == Process.SYSTEM_UID)
-                return;
+        // Allow system
+        if (cuid == Process.SYSTEM_UID)
+            return;
 
-            // Allow same signature
-            PackageManager pm = context.getPackageManager();
-            String self = XProvider.class.getPackage().getName();
-            int uid = pm.getApplicationInfo(self, 0).uid;
-            if (pm.checkSignatures(cuid, uid) != PackageManager.SIGNATURE_MATCH)
-                throw new SecurityException("Signature error cuid=" + cuid);
-        } catch (PackageManager.NameNotFoundException ex) {
-            throw new SecurityException(ex);
+        Boolean verdict = verdicts.get(cuid);
+        if (verdict == null) {
+            // Access package manager as system user
+            long ident = Binder.clearCallingIdentity();
+            try {
+                // Allow same signature
+                PackageManager pm = context.getPackageManager();
+                String self = XProvider.class.getPackage().getName();
+                int uid = pm.getApplicationInfo(self, 0).uid;
+                verdict = (pm.checkSignatures(cuid, uid) == PackageManager.SIGNATURE_MATCH);
+                verdicts.put(cuid, verdict);
+            } catch (PackageManager.NameNotFoundException ex) {
+                throw new SecurityException(ex);
+            } finally {
+                Binder.restoreCallingIdentity(ident);
+            }
+
+            long misses = verdictMisses.incrementAndGet();
+            Log.i(TAG, "Signature cuid=" + cuid + " match=" + verdict +
+                    " hits=" + verdictHits.get() + " misses=" + misses);
+        } else
+            verdictHits.incrementAndGet();
+
+        if (!verdict)
+            throw new SecurityException("Signature error cuid=" + cuid);
+    }
+
+    // Caller should hold the lock of the shard
+    private static void updateAssigned(
+            XShard shard, String packageName, int uid, List<String> hookids, boolean delete) {
+        String key = packageName + ":" + uid;
+        Set<String> assigned = shard.assignments.get(key);
+        Set<String> copy = (assigned == null ? new TreeSet<String>() : new TreeSet<>(assigned));
+        if (delete)
+            copy.removeAll(hookids);
+        else
+            copy.addAll(hookids);
+        shard.assignments.put(key, Collections.unmodifiableSet(copy));
+    }
+
+    private static Map<String, Set<String>> loadAssignments(XShard shard) {
+        Map<String, Set<String>> result = new ConcurrentHashMap<>();
+        int count = 0;
+
+        // Called from getShard before any assignment of the user can be changed
+        Cursor cursor = null;
+        try {
+            cursor = shard.db.rawQuery(cAssignments, null);
+            while (cursor.moveToNext()) {
+                String key = cursor.getString(0) + ":" + cursor.getInt(1);
+                Set<String> assigned = result.get(key);
+                if (assigned == null) {
+                    assigned = new TreeSet<>();
+                    result.put(key, assigned);
+                }
+                assigned.add(cursor.getString(2));
+                count++;
+            }
         } finally {
-            Binder.restoreCallingIdentity(ident);
+            if (cursor != null)
+                cursor.close();
         }
+
+        for (String key : result.keySet())
+            result.put(key, Collections.unmodifiableSet(result.get(key)));
+
+        Log.i(TAG, "Loaded assignments user=" + shard.userid + " apps=" + result.size() + " count=" + count);
+        return result;
     }
 
     private static Map<String, XHook> loadHooks(Context context) throws Throwable {
@@ -912,32 +1558,20 @@ class XProvider {
 
         // Read external definitions
         List<XHook> defined = new ArrayList<>();
-        dbLock.readLock().lock();
+        Cursor cursor = null;
         try {
-            db.beginTransaction();
-            try {
-                Cursor cursor = null;
-                try {
-                    cursor = db.query("hook", null,
-                            null, null,
-                            null, null, null);
-                    int colDefinition = cursor.getColumnIndex("definition");
-                    while (cursor.moveToNext()) {
-                        String definition = cursor.getString(colDefinition);
-                        XHook hook = XHook.fromJSON(definition);
-                        defined.add(hook);
-                    }
-                } finally {
-                    if (cursor != null)
-                        cursor.close();
-                }
-
-                db.setTransactionSuccessful();
-            } finally {
-                db.endTransaction();
+            cursor = getShard(context, 0).db.query("hook", null,
+                    null, null,
+                    null, null, null);
+            int colDefinition = cursor.getColumnIndex("definition");
+            while (cursor.moveToNext()) {
+                String definition = cursor.getString(colDefinition);
+                XHook hook = XHook.fromJSON(definition);
+                defined.add(hook);
             }
         } finally {
-            dbLock.readLock().unlock();
+            if (cursor != null)
+                cursor.close();
         }
 
         // Build map
@@ -955,19 +1589,238 @@ class XProvider {
         return result;
     }
 
-    private static SQLiteDatabase getDatabase() throws Throwable {
-        // Build database file
-        File dbFile = new File(
+    // Opens the database of the user on first use
+    // Some methods take the user from their arguments, so no files and threads are created for users which do not exist
+    private static XShard getShard(Context context, int userid) throws Throwable {
+        XShard shard = shards.get(userid);
+        if (shard != null)
+            return shard;
+
+        if (!Util.hasUser(context, userid))
+            throw new IllegalArgumentException("user invalid " + userid);
+
+        synchronized (shards) {
+            shard = shards.get(userid);
+            if (shard == null) {
+                File dbFile = getShardFile(userid);
+                shard = new XShard(userid, dbFile, openDatabase(dbFile));
+                try {
+                    // The database of the owner held the data of all users before
+                    if (userid != 0 && !isMoved(shard))
+                        moveUser(getShard(context, 0), shard);
+
+                    shard.assignments = loadAssignments(shard);
+                } catch (Throwable ex) {
+                    shard.close();
+                    throw ex;
+                }
+                shards.put(userid, shard);
+                compactEpochs(shard);
+            }
+            return shard;
+        }
+    }
+
+    // Readers of arguments of any app get nothing for users which do not exist
+    private static XShard findShard(Context context, int userid) throws Throwable {
+        XShard shard = shards.get(userid);
+        if (shard != null)
+            return shard;
+        return (Util.hasUser(context, userid) ? getShard(context, userid) : null);
+    }
+
+    private static File getDatabaseDir() {
+        return new File(
                 Environment.getDataDirectory() + File.separator +
                         "system" + File.separator +
-                        "xlua" + File.separator +
-                        "xlua.db");
+                        "xlua");
+    }
+
+    private static File getShardFile(int userid) {
+        return new File(getDatabaseDir(), userid == 0 ? "xlua.db" : "xlua_" + userid + ".db");
+    }
+
+    // Removing a user is deleting its database, opened or not, and its rows not moved out of the owner database yet
+    private static void deleteShard(Context context, final int userid) throws Throwable {
+        write(new Write(getShard(context, 0)) {
+            @Override
+            void run() {
+                deleteUserRows(shard, userid);
+            }
+
+            @Override
+            void committed() {
+                removeUserAssignments(shard, userid);
+            }
+        });
+
+        XShard shard;
+        synchronized (shards) {
+            shard = shards.remove(userid);
+            if (shard == null) {
+                File dbFile = getShardFile(userid);
+                boolean deleted = SQLiteDatabase.deleteDatabase(dbFile);
+                Log.i(TAG, "Deleted database file=" + dbFile + " deleted=" + deleted);
+                return;
+            }
+        }
+
+        // Writes queued before are committed first, later writes and readers fail
+        try {
+            write(new Write(shard) {
+                @Override
+                void run() {
+                }
+            });
+        } catch (Throwable ex) {
+            Log.e(TAG, Log.getStackTraceString(ex));
+        }
+        shard.delete();
+    }
+
+    // The marker is committed together with the moved rows, so that an interrupted move is retried
+    private static boolean isMoved(XShard shard) {
+        return (DatabaseUtils.longForQuery(shard.db,
+                "SELECT COUNT(*) FROM sqlite_master WHERE type = 'table' AND name = 'moved'", null) > 0);
+    }
+
+    // Copies the rows of the user from the database of the owner and deletes them there afterwards
+    private static void moveUser(XShard owner, XShard shard) throws Throwable {
+        int start = Util.getUserUid(shard.userid, 0);
+        int end = Util.getUserUid(shard.userid, Process.LAST_APPLICATION_UID);
+        String user = Integer.toString(shard.userid);
+        String[] range = new String[]{Integer.toString(start), Integer.toString(end)};
+
+        owner.lock();
+        try {
+            long rows = 0;
+            shard.lock();
+            try {
+                shard.db.beginTransaction();
+                try {
+                    rows += copyRows(owner, shard, "setting", "user = ?", new String[]{user});
+                    rows += copyRows(owner, shard, "usage", "uid >= ? AND uid <= ?", range);
+                    rows += copyRows(owner, shard, "history", "uid >= ? AND uid <= ?", range);
+
+                    SQLiteStatement statement = shard.getStatement("UPDATE assigned SET" +
+                            " installed = ?, used = ?, restricted = ?," +
+                            " exception = (SELECT id FROM intern_exception WHERE text = ?)" +
+                            " WHERE package = " + cPackageId + " AND uid = ? AND hook = " + cHookId);
+                    SQLiteStatement intern = shard.getStatement(
+                            "INSERT OR IGNORE INTO intern_exception (text) VALUES (?)");
+                    Cursor cursor = null;
+                    try {
+                        cursor = owner.db.rawQuery(cAssignments + " WHERE a.uid >= ? AND a.uid <= ?", range);
+                        while (cursor.moveToNext()) {
+                            String packageName = cursor.getString(0);
+                            int uid = cursor.getInt(1);
+                            String hookid = cursor.getString(2);
+                            if (insertAssignment(shard, packageName, uid, hookid) < 0)
+                                throw new Throwable("Error inserting assignment");
+
+                            for (int i = 3; i <= 5; i++)
+                                if (cursor.isNull(i))
+                                    statement.bindNull(i - 2);
+                                else
+                                    statement.bindLong(i - 2, cursor.getLong(i));
+                            if (cursor.isNull(6))
+                                statement.bindNull(4);
+                            else {
+                                intern.bindString(1, cursor.getString(6));
+                                intern.execute();
+                                statement.bindString(4, cursor.getString(6));
+                            }
+                            statement.bindString(5, packageName);
+                            statement.bindLong(6, uid);
+                            statement.bindString(7, hookid);
+                            statement.executeUpdateDelete();
+                            rows++;
+                        }
+                    } finally {
+                        if (cursor != null)
+                            cursor.close();
+                    }
+
+                    shard.db.execSQL("CREATE TABLE moved (user INTEGER NOT NULL)");
+                    shard.db.execSQL("INSERT INTO moved (user) VALUES (" + shard.userid + ")");
+
+                    shard.db.setTransactionSuccessful();
+                } finally {
+                    shard.db.endTransaction();
+                }
+            } finally {
+                shard.unlock();
+            }
+
+            // Rows left behind by a failure here are ignored by readers of the owner
+            owner.db.beginTransaction();
+            try {
+                deleteUserRows(owner, shard.userid);
+                owner.db.setTransactionSuccessful();
+            } finally {
+                owner.db.endTransaction();
+            }
+            removeUserAssignments(owner, shard.userid);
+
+            Log.i(TAG, "Moved user=" + shard.userid + " rows=" + rows);
+        } finally {
+            owner.unlock();
+        }
+    }
+
+    // Rows of other users in the database of the owner, to be called in a transaction
+    private static void deleteUserRows(XShard owner, int userid) {
+        String user = Integer.toString(userid);
+        String[] range = new String[]{
+                Integer.toString(Util.getUserUid(userid, 0)),
+                Integer.toString(Util.getUserUid(userid, Process.LAST_APPLICATION_UID))};
+        owner.db.delete("setting", "user = ?", new String[]{user});
+        owner.db.delete("usage", "uid >= ? AND uid <= ?", range);
+        owner.db.delete("history", "uid >= ? AND uid <= ?", range);
+        owner.db.delete("assigned", "uid >= ? AND uid <= ?", range);
+    }
+
+    private static void removeUserAssignments(XShard owner, int userid) {
+        int start = Util.getUserUid(userid, 0);
+        int end = Util.getUserUid(userid, Process.LAST_APPLICATION_UID);
+        for (String key : owner.assignments.keySet()) {
+            int uid = Integer.parseInt(key.substring(key.lastIndexOf(':') + 1));
+            if (uid >= start && uid <= end)
+                owner.assignments.remove(key);
+        }
+    }
+
+    private static long copyRows(XShard from, XShard to, String table, String where, String[] args) {
+        long rows = 0;
+        Cursor cursor = null;
+        try {
+            cursor = from.db.query(table, null, where, args, null, null, null);
+            ContentValues cv = new ContentValues();
+            while (cursor.moveToNext()) {
+                cv.clear();
+                DatabaseUtils.cursorRowToContentValues(cursor, cv);
+                if (to.db.insertWithOnConflict(table, null, cv, SQLiteDatabase.CONFLICT_REPLACE) >= 0)
+                    rows++;
+            }
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        return rows;
+    }
+
+    private static SQLiteDatabase openDatabase(File dbFile) throws Throwable {
         dbFile.getParentFile().mkdirs();
 
         // Open database
         SQLiteDatabase _db = SQLiteDatabase.openOrCreateDatabase(dbFile, null);
         Log.i(TAG, "Database file=" + dbFile);
 
+        // Write ahead logging lets app start reads proceed while reports are written
+        // Enabled before setting permissions to include the -wal and -shm files
+        if (!_db.enableWriteAheadLogging())
+            Log.w(TAG, "Write ahead logging not enabled");
+
         // Set database file permissions
         // Owner: rwx (system)
         // Group: rwx (system)
@@ -978,7 +1831,7 @@ class XProvider {
             for (File file : files)
                 Util.setPermissions(file.getAbsolutePath(), 0770, Process.SYSTEM_UID, Process.SYSTEM_UID);
 
-        dbLock.writeLock().lock();
+        // Not yet shared, so no lock is needed
         try {
             // Upgrade database if needed
             if (_db.needUpgrade(1)) {
@@ -1012,35 +1865,345 @@ class XProvider {
                 }
             }
 
+            if (_db.needUpgrade(3)) {
+                _db.beginTransaction();
+                try {
+                    _db.execSQL("CREATE TABLE usage (package TEXT NOT NULL, uid INTEGER NOT NULL, hook TEXT NOT NULL, calls INTEGER NOT NULL, restricted INTEGER NOT NULL, errors INTEGER NOT NULL, duration INTEGER NOT NULL, duration_max INTEGER NOT NULL)");
+                    _db.execSQL("CREATE UNIQUE INDEX idx_usage ON usage(package, uid, hook)");
+
+                    _db.setVersion(3);
+                    _db.setTransactionSuccessful();
+                } finally {
+                    _db.endTransaction();
+                }
+            }
+
+            if (_db.needUpgrade(4)) {
+                _db.beginTransaction();
+                try {
+                    _db.execSQL("CREATE TABLE history (package TEXT NOT NULL, uid INTEGER NOT NULL, hook TEXT NOT NULL, resolution INTEGER NOT NULL, time INTEGER NOT NULL, calls INTEGER NOT NULL, restricted INTEGER NOT NULL, errors INTEGER NOT NULL, duration INTEGER NOT NULL)");
+                    _db.execSQL("CREATE UNIQUE INDEX idx_history ON history(package, uid, hook, resolution, time)");
+                    _db.execSQL("CREATE INDEX idx_history_time ON history(resolution, time)");
+
+                    _db.setVersion(4);
+                    _db.setTransactionSuccessful();
+                } finally {
+                    _db.endTransaction();
+                }
+            }
+
+            if (_db.needUpgrade(5)) {
+                _db.beginTransaction();
+                try {
+                    // Interned names and exceptions, keyed by uid first to serve per user range scans
+                    _db.execSQL("CREATE TABLE intern_package (id INTEGER PRIMARY KEY, name TEXT NOT NULL UNIQUE)");
+                    _db.execSQL("CREATE TABLE intern_hook (id INTEGER PRIMARY KEY, name TEXT NOT NULL UNIQUE)");
+                    _db.execSQL("CREATE TABLE intern_exception (id INTEGER PRIMARY KEY, text TEXT NOT NULL UNIQUE)");
+                    _db.execSQL("CREATE TABLE assigned (uid INTEGER NOT NULL, package INTEGER NOT NULL, hook INTEGER NOT NULL, installed INTEGER, used INTEGER, restricted INTEGER, exception INTEGER, PRIMARY KEY (uid, package, hook)) WITHOUT ROWID");
+
+                    _db.execSQL("INSERT INTO intern_package (name) SELECT DISTINCT package FROM assignment");
+                    _db.execSQL("INSERT INTO intern_hook (name) SELECT DISTINCT hook FROM assignment");
+                    _db.execSQL("INSERT INTO intern_exception (text) SELECT DISTINCT exception FROM assignment WHERE exception IS NOT NULL");
+                    _db.execSQL("INSERT INTO assigned" +
+                            " SELECT a.uid, p.id, h.id, a.installed, a.used, a.restricted, e.id FROM assignment a" +
+                            " JOIN intern_package p ON p.name = a.package" +
+                            " JOIN intern_hook h ON h.name = a.hook" +
+                            " LEFT JOIN intern_exception e ON e.text = a.exception");
+                    _db.execSQL("DROP TABLE assignment");
+
+                    _db.setVersion(5);
+                    _db.setTransactionSuccessful();
+                } finally {
+                    _db.endTransaction();
+                }
+            }
+
+            if (_db.needUpgrade(6)) {
+                _db.beginTransaction();
+                try {
+                    _db.execSQL("ALTER TABLE assigned ADD COLUMN epoch INTEGER NOT NULL DEFAULT 0");
+                    _db.execSQL("CREATE INDEX idx_assigned_epoch ON assigned(epoch)");
+                    _db.execSQL("CREATE TABLE boot (epoch INTEGER NOT NULL)");
+                    _db.execSQL("INSERT INTO boot (epoch) VALUES (0)");
+
+                    _db.setVersion(6);
+                    _db.setTransactionSuccessful();
+                } finally {
+                    _db.endTransaction();
+                }
+            }
+
+            // Per user queries, moves and clears select uid ranges
+            if (_db.needUpgrade(7)) {
+                _db.beginTransaction();
+                try {
+                    _db.execSQL("CREATE INDEX idx_usage_uid ON usage(uid, package, hook)");
+                    _db.execSQL("CREATE INDEX idx_history_uid ON history(uid, resolution, time)");
+
+                    _db.setVersion(7);
+                    _db.setTransactionSuccessful();
+                } finally {
+                    _db.endTransaction();
+                }
+            }
+
             deleteHook(_db, "Privacy.ContentResolver/query1");
             deleteHook(_db, "Privacy.ContentResolver/query16");
             deleteHook(_db, "Privacy.ContentResolver/query26");
             renameHook(_db, "Privacy.MediaRecorder.start", "Privacy.MediaRecorder.start.Audio");
             renameHook(_db, "Privacy.MediaRecorder.stop", "Privacy.MediaRecorder.stop.Audio");
 
-            Log.i(TAG, "Database version=" + _db.getVersion());
+            Log.i(TAG, "Database file=" + dbFile.getName() + " version=" + _db.getVersion());
 
-            // Reset usage data
-            ContentValues cv = new ContentValues();
-            cv.put("installed", -1);
-            cv.putNull("exception");
-            long rows = _db.update("assignment", cv, null, null);
-            Log.i(TAG, "Reset assigned hook data count=" + rows);
+            // Reset usage data by starting a new epoch, stale rows are compacted in the background
+            _db.execSQL("UPDATE boot SET epoch = epoch + 1");
+            Log.i(TAG, "Boot epoch=" + DatabaseUtils.longForQuery(_db, "SELECT epoch FROM boot", null));
 
             return _db;
         } catch (Throwable ex) {
             _db.close();
             throw ex;
+        }
+    }
+
+    // Queues the write and waits until it is committed
+    private static void write(Write write) throws Throwable {
+        write.waited = true;
+        enqueue(write);
+        write.done.await();
+        if (write.error != null)
+            throw write.error;
+    }
+
+    // Queues the write without waiting, errors are logged
+    // Posted writes are reports, which are dropped when the writer cannot keep up
+    private static void post(Write write) {
+        if (writes.size() < cMaxPosted)
+            enqueue(write);
+        else if (writesDropped.incrementAndGet() % 1000 == 1)
+            Log.w(TAG, "Writer queue full, dropped=" + writesDropped.get());
+    }
+
+    private static void enqueue(Write write) {
+        synchronized (writes) {
+            if (writer == null) {
+                writer = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        while (true)
+                            try {
+                                // Collect writes arriving shortly after the first one
+                                List<Write> batch = new ArrayList<>();
+                                batch.add(writes.take());
+                                long deadline = SystemClock.elapsedRealtime() + cWriteDelay;
+                                while (batch.size() < cWriteBatch) {
+                                    long wait = deadline - SystemClock.elapsedRealtime();
+                                    Write next = (wait > 0 ? writes.poll(wait, TimeUnit.MILLISECONDS) : writes.poll());
+                                    if (next == null)
+                                        break;
+                                    batch.add(next);
+                                }
+                                commit(batch);
+                            } catch (Throwable ex) {
+                                Log.e(TAG, Log.getStackTraceString(ex));
+                            }
+                    }
+                });
+                writer.setName("xlua-writer");
+                writer.start();
+            }
+        }
+        writes.add(write);
+    }
+
+    private static void commit(List<Write> batch) {
+        // One transaction per user database, in order of arrival
+        Map<XShard, List<Write>> users = new LinkedHashMap<>();
+        for (Write write : batch) {
+            if (!users.containsKey(write.shard))
+                users.put(write.shard, new ArrayList<Write>());
+            users.get(write.shard).add(write);
+        }
+        for (XShard shard : users.keySet())
+            commit(shard, users.get(shard));
+    }
+
+    // Never throws, every write of the batch is done afterwards, with an error if it was not committed
+    private static void commit(XShard shard, List<Write> batch) {
+        try {
+            shard.lock();
+            try {
+                Throwable error = null;
+                long start = System.nanoTime();
+                try {
+                    // Beginning and ending can fail too, for example when the disk is full
+                    shard.db.beginTransaction();
+                    try {
+                        for (Write write : batch)
+                            write.run();
+                        shard.db.setTransactionSuccessful();
+                    } finally {
+                        shard.db.endTransaction();
+                    }
+                } catch (Throwable ex) {
+                    error = ex;
+                } finally {
+                    shard.transactions.incrementAndGet();
+                    shard.sqlite.addAndGet((System.nanoTime() - start) / 1000);
+                }
+
+                // Retry one by one, so that only the failing write fails
+                if (error != null && batch.size() > 1) {
+                    for (Write write : batch)
+                        commit(shard, Collections.singletonList(write));
+                    return;
+                }
+
+                for (Write write : batch) {
+                    if (error == null)
+                        try {
+                            write.committed();
+                        } catch (Throwable ex) {
+                            write.error = ex;
+                        }
+                    else
+                        write.error = error;
+
+                    if (write.error == null)
+                        writesCommitted.incrementAndGet();
+                    else {
+                        writesFailed.incrementAndGet();
+                        if (!write.waited)
+                            Log.e(TAG, Log.getStackTraceString(write.error));
+                    }
+                }
+
+                if (commits.incrementAndGet() % 1000 == 0)
+                    Log.i(TAG, "Writer commits=" + commits.get() + " writes=" + writesCommitted.get());
+            } finally {
+                shard.unlock();
+            }
+        } catch (Throwable ex) {
+            Log.e(TAG, Log.getStackTraceString(ex));
+            for (Write write : batch)
+                if (write.error == null)
+                    write.error = ex;
         } finally {
-            dbLock.writeLock().unlock();
+            for (Write write : batch)
+                write.done.countDown();
+        }
+    }
+
+    private abstract static class Write {
+        final XShard shard;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private Throwable error = null;
+        private boolean waited = false;
+
+        Write(XShard shard) {
+            this.shard = shard;
+        }
+
+        // Runs in a transaction shared with other writes to the same database
+        abstract void run() throws Throwable;
+
+        // Runs after the commit with the lock of the database held
+        void committed() {
         }
     }
 
+    // Resets rows of earlier boot epochs in small batches, so that writers are not held up
+    private static void compactEpochs(final XShard shard) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    shard.acquire();
+                } catch (IllegalStateException ex) {
+                    Log.w(TAG, ex.getMessage());
+                    return;
+                }
+                try {
+                    // Batches continue after the primary key of the last row of the previous batch
+                    long total = 0;
+                    long uid = -1;
+                    long pkg = -1;
+                    long hook = -1;
+                    while (true) {
+                        List<long[]> keys = new ArrayList<>();
+                        Cursor cursor = null;
+                        try {
+                            cursor = shard.db.rawQuery(
+                                    "SELECT uid, package, hook FROM assigned" +
+                                            " WHERE uid >= ? AND (uid > ? OR package > ? OR (package = ? AND hook > ?))" +
+                                            " AND epoch < " + cEpoch +
+                                            " ORDER BY uid, package, hook LIMIT " + cCompactBatch,
+                                    new String[]{Long.toString(uid), Long.toString(uid),
+                                            Long.toString(pkg), Long.toString(pkg), Long.toString(hook)});
+                            while (cursor.moveToNext())
+                                keys.add(new long[]{cursor.getLong(0), cursor.getLong(1), cursor.getLong(2)});
+                        } finally {
+                            if (cursor != null)
+                                cursor.close();
+                        }
+                        if (keys.size() == 0)
+                            break;
+
+                        shard.lock();
+                        try {
+                            SQLiteStatement statement = shard.getStatement(
+                                    "UPDATE assigned SET installed = -1, exception = NULL, epoch = " + cEpoch +
+                                            " WHERE uid = ? AND package = ? AND hook = ? AND epoch < " + cEpoch);
+                            shard.db.beginTransaction();
+                            try {
+                                for (long[] key : keys) {
+                                    statement.bindLong(1, key[0]);
+                                    statement.bindLong(2, key[1]);
+                                    statement.bindLong(3, key[2]);
+                                    total += statement.executeUpdateDelete();
+                                }
+                                shard.db.setTransactionSuccessful();
+                            } finally {
+                                shard.db.endTransaction();
+                            }
+                        } finally {
+                            shard.unlock();
+                        }
+
+                        long[] last = keys.get(keys.size() - 1);
+                        uid = last[0];
+                        pkg = last[1];
+                        hook = last[2];
+                    }
+
+                    shard.lock();
+                    try {
+                        shard.db.delete("intern_exception",
+                                "id NOT IN (SELECT exception FROM assigned WHERE exception IS NOT NULL)", null);
+                        shard.db.delete("intern_package", "id NOT IN (SELECT package FROM assigned)", null);
+                        shard.db.delete("intern_hook", "id NOT IN (SELECT hook FROM assigned)", null);
+                    } finally {
+                        shard.unlock();
+                    }
+
+                    Log.i(TAG, "Compacted epochs user=" + shard.userid + " rows=" + total);
+                } catch (Throwable ex) {
+                    Log.e(TAG, Log.getStackTraceString(ex));
+                } finally {
+                    shard.release();
+                }
+            }
+        });
+        thread.setName("xlua-compact-" + shard.userid);
+        thread.start();
+    }
+
     private static void renameHook(SQLiteDatabase _db, String oldId, String newId) {
         try {
             ContentValues cvMediaStart = new ContentValues();
-            cvMediaStart.put("hook", oldId);
-            long rows = _db.update("assignment", cvMediaStart, "hook = ?", new String[]{newId});
+            cvMediaStart.put("name", oldId);
+            long rows = _db.update("intern_hook", cvMediaStart, "name = ?", new String[]{newId});
             Log.i(TAG, "Renamed hook " + oldId + " into " + newId + " rows=" + rows);
         } catch (Throwable ex) {
             Log.i(TAG, "Renamed hook " + oldId + " into " + newId + " ex=" + ex.getMessage());
@@ -1049,7 +2212,7 @@ class XProvider {
 
     private static void deleteHook(SQLiteDatabase _db, String id) {
         try {
-            long rows = _db.delete("assignment", "hook = ?", new String[]{id});
+            long rows = _db.delete("assigned", "hook = " + cHookId, new String[]{id});
             Log.i(TAG, "Deleted hook " + id + " rows=" + rows);
         } catch (Throwable ex) {
             Log.i(TAG, "Deleted hook " + id + " ex=" + ex.getMessage());
@@ -0,0 +1,548 @@
+/*
+    This file is part of XPrivacyLua.
+
+    XPrivacyLua is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    XPrivacyLua is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with XPrivacyLua.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2017-2018 Marcel Bokhorst (M66B)
+ */
+
+package eu.faircode.xlua;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+class XReporter {
+    private final static String TAG = "XLua.Reporter";
+
+    private final static int cMaxQueued = 256; // (event, hook) pairs
+    private final static long cMinInterval = 1000; // milliseconds
+    private final static long cMaxInterval = 30 * 1000; // milliseconds
+    private final static long cSlowCall = 100; // milliseconds
+    private final static long cUsageInterval = 30 * 1000; // milliseconds
+
+    private final static String cSpoolName = "xlua_reports.spool";
+    private final static long cMaxSpool = 64 * 1024; // bytes
+    private final static int cSpoolBatch = 50; // reports
+    private final static int cSpoolAttempts = 5;
+
+    private static ScheduledExecutorService scheduler = null;
+
+    private final Context context;
+    private final String packageName;
+    private final int uid;
+
+    private final Map<String, Map<String, Bundle>> queue = new HashMap<>();
+    private final Map<String, Usage> usage = new HashMap<>();
+    private int queued = 0;
+    private long dropped = 0;
+    private long interval = cMinInterval;
+    private boolean scheduled = false;
+    private boolean usageScheduled = false;
+
+    // Outcome of the calls of the current flush, only used by the scheduler thread
+    private boolean contacted = false;
+    private boolean unreachable = false;
+
+    XReporter(Context context, String packageName, int uid) {
+        this.context = context;
+        this.packageName = packageName;
+        this.uid = uid;
+
+        // Replay reports spooled by a previous process, the scheduler is only created when needed
+        if (getSpool().exists())
+            synchronized (queue) {
+                scheduled = true;
+                schedule(interval);
+            }
+    }
+
+    void report(String hook, String event, Bundle data) {
+        Bundle args = new Bundle();
+        args.putString("hook", hook);
+        args.putString("packageName", packageName);
+        args.putInt("uid", uid);
+        args.putString("event", event);
+        args.putLong("time", new Date().getTime());
+        args.putBundle("data", data);
+
+        synchronized (queue) {
+            if (!queue.containsKey(event))
+                queue.put(event, new HashMap<String, Bundle>());
+            Map<String, Bundle> hooks = queue.get(event);
+
+            // Newer events replace older events, but the number of pending pairs is bounded
+            if (!hooks.containsKey(hook)) {
+                if (queued >= cMaxQueued) {
+                    dropped++;
+                    return;
+                }
+                queued++;
+            }
+            hooks.put(hook, args);
+
+            if (!scheduled) {
+                scheduled = true;
+                schedule(interval);
+            }
+        }
+    }
+
+    void count(String hook, boolean restricted, boolean error, long duration) {
+        synchronized (queue) {
+            Usage counters = usage.get(hook);
+            if (counters == null) {
+                counters = new Usage();
+                usage.put(hook, counters);
+            }
+            counters.calls++;
+            if (restricted)
+                counters.restricted++;
+            if (error)
+                counters.errors++;
+            counters.duration += duration;
+            counters.durationMax = Math.max(counters.durationMax, duration);
+
+            // Every hook call is counted, so counters are merged much less often than reports are sent
+            if (!usageScheduled) {
+                usageScheduled = true;
+                scheduleUsage();
+            }
+        }
+    }
+
+    private void schedule(long delay) {
+        getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void scheduleUsage() {
+        getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                flushUsage();
+            }
+        }, cUsageInterval, TimeUnit.MILLISECONDS);
+    }
+
+    // Usage counters are merged additively by the provider, so one call covers all hooks
+    private void flushUsage() {
+        Bundle counters;
+        synchronized (queue) {
+            counters = getUsage();
+            usage.clear();
+        }
+
+        boolean failed = !send("reportUsage", counters);
+
+        synchronized (queue) {
+            if (failed)
+                putUsage(counters);
+            if (usage.size() > 0)
+                scheduleUsage();
+            else
+                usageScheduled = false;
+        }
+    }
+
+    private void flush() {
+        long drops;
+        List<Bundle> work = new ArrayList<>();
+        synchronized (queue) {
+            for (String event : queue.keySet())
+                for (String hook : queue.get(event).keySet())
+                    work.add(queue.get(event).get(hook));
+            queue.clear();
+            queued = 0;
+            drops = dropped;
+            dropped = 0;
+        }
+
+        Log.i(TAG, "Processing event queue package=" + packageName + ":" + uid +
+                " events=" + work.size() + " dropped=" + drops);
+
+        // Reports are sent one by one, so new events keep queuing while the provider is busy
+        contacted = false;
+        unreachable = false;
+        long start = SystemClock.elapsedRealtime();
+        List<Bundle> failed = new ArrayList<>();
+        for (Bundle args : work)
+            if (!send("report", args))
+                failed.add(args);
+        long elapsed = SystemClock.elapsedRealtime() - start;
+
+        // Keep undelivered reports on disk until the provider is reachable again
+        // Without new reports the first spooled report probes the provider
+        if (failed.size() > 0 || getSpool().exists()) {
+            FileChannel lock = lockSpool();
+            try {
+                if (failed.size() > 0)
+                    spool(failed);
+                else if (!unreachable)
+                    replay(work);
+            } finally {
+                unlockSpool(lock);
+            }
+        }
+
+        synchronized (queue) {
+            // Back off when the provider is slow or unreachable, recover when it is fast again
+            int calls = work.size();
+            if (unreachable || (calls > 0 && elapsed / calls > cSlowCall))
+                interval = Math.min(interval * 2, cMaxInterval);
+            else if (contacted)
+                interval = Math.max(interval / 2, cMinInterval);
+
+            if (queued > 0 || getSpool().exists())
+                schedule(interval);
+            else
+                scheduled = false;
+        }
+    }
+
+    private boolean send(String method, Bundle args) {
+        try {
+            // The settings provider returns null when the module did not handle the call
+            if (context.getContentResolver().call(XProvider.URI, "xlua", method, args) != null) {
+                contacted = true;
+                return true;
+            }
+        } catch (Throwable ex) {
+            Log.e(TAG, Log.getStackTraceString(ex));
+        }
+        unreachable = true;
+        return false;
+    }
+
+    // Processes of the same app share the spool, the lock is released by closing the channel
+    private FileChannel lockSpool() {
+        FileChannel channel = null;
+        try {
+            File file = new File(context.getNoBackupFilesDir(), cSpoolName + ".lock");
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            channel.lock();
+            return channel;
+        } catch (Throwable ex) {
+            Log.e(TAG, Log.getStackTraceString(ex));
+            unlockSpool(channel);
+            return null;
+        }
+    }
+
+    private static void unlockSpool(FileChannel channel) {
+        if (channel != null)
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+    }
+
+    private File getSpool() {
+        return new File(context.getNoBackupFilesDir(), cSpoolName);
+    }
+
+    private void spool(List<Bundle> reports) {
+        File file = getSpool();
+        Log.i(TAG, "Spooling reports package=" + packageName + ":" + uid + " count=" + reports.size());
+
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+            for (Bundle args : reports)
+                writer.write(toJSON(args, 0).toString() + "\n");
+        } catch (Throwable ex) {
+            Log.e(TAG, Log.getStackTraceString(ex));
+        } finally {
+            if (writer != null)
+                try {
+                    writer.close();
+                } catch (IOException ignored) {
+                }
+        }
+
+        if (file.length() > cMaxSpool)
+            writeSpool(readSpool());
+    }
+
+    // Stops at the first failure, attempts are only counted while the provider is known to be reachable
+    private void replay(List<Bundle> sent) {
+        File file = getSpool();
+        if (!file.exists())
+            return;
+
+        // Reports just sent are newer than spooled reports for the same hook and event
+        List<JSONObject> spooled = readSpool();
+        for (Bundle args : sent)
+            spooled.remove(findSpooled(args.getString("hook"), args.getString("event"), spooled));
+
+        List<JSONObject> remaining = new ArrayList<>();
+        int count = 0;
+        boolean stopped = false;
+        for (JSONObject jreport : spooled)
+            try {
+                if (!stopped && count < cSpoolBatch) {
+                    count++;
+                    if (!send("report", fromJSON(jreport))) {
+                        stopped = true;
+                        int attempts = jreport.getInt("attempts") + (contacted ? 1 : 0);
+                        if (attempts < cSpoolAttempts) {
+                            jreport.put("attempts", attempts);
+                            remaining.add(jreport);
+                        }
+                    }
+                } else
+                    remaining.add(jreport);
+            } catch (Throwable ex) {
+                Log.e(TAG, Log.getStackTraceString(ex));
+            }
+
+        Log.i(TAG, "Replayed reports package=" + packageName + ":" + uid +
+                " count=" + count + " remaining=" + remaining.size());
+        writeSpool(remaining);
+    }
+
+    // Returns the spooled reports deduplicated by (hook, event), oldest first
+    private List<JSONObject> readSpool() {
+        Map<String, JSONObject> reports = new LinkedHashMap<>();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(getSpool()), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null)
+                try {
+                    JSONObject jreport = new JSONObject(line);
+                    String key = jreport.getString("hook") + "/" + jreport.getString("event");
+                    reports.remove(key);
+                    reports.put(key, jreport);
+                } catch (JSONException ex) {
+                    Log.w(TAG, "Invalid spooled report: " + ex.getMessage());
+                }
+        } catch (FileNotFoundException ignored) {
+        } catch (Throwable ex) {
+            Log.e(TAG, Log.getStackTraceString(ex));
+        } finally {
+            if (reader != null)
+                try {
+                    reader.close();
+                } catch (IOException ignored) {
+                }
+        }
+        return new ArrayList<>(reports.values());
+    }
+
+    private void writeSpool(List<JSONObject> reports) {
+        File file = getSpool();
+        if (reports.size() == 0) {
+            file.delete();
+            return;
+        }
+
+        // Drop the oldest reports when the spool is too large
+        List<String> lines = new ArrayList<>();
+        long size = 0;
+        for (int i = reports.size() - 1; i >= 0; i--) {
+            String line = reports.get(i).toString() + "\n";
+            size += line.length();
+            if (size > cMaxSpool)
+                break;
+            lines.add(0, line);
+        }
+
+        File tmp = new File(file.getParentFile(), cSpoolName + ".tmp");
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+            for (String line : lines)
+                writer.write(line);
+            writer.close();
+            writer = null;
+            if (!tmp.renameTo(file))
+                throw new IOException("Rename failed " + tmp);
+        } catch (Throwable ex) {
+            Log.e(TAG, Log.getStackTraceString(ex));
+        } finally {
+            if (writer != null)
+                try {
+                    writer.close();
+                } catch (IOException ignored) {
+                }
+        }
+    }
+
+    private static JSONObject findSpooled(String hook, String event, List<JSONObject> reports) {
+        for (JSONObject jreport : reports)
+            if (hook.equals(jreport.optString("hook")) && event.equals(jreport.optString("event")))
+                return jreport;
+        return null;
+    }
+
+    private static JSONObject toJSON(Bundle args, int attempts) throws JSONException {
+        JSONObject jdata = new JSONObject();
+        Bundle data = args.getBundle("data");
+        for (String key : data.keySet()) {
+            Object value = data.get(key);
+            if (value instanceof Integer)
+                jdata.put(key, "i:" + value);
+            else if (value instanceof Long)
+                jdata.put(key, "l:" + value);
+            else if (value instanceof Boolean)
+                jdata.put(key, "b:" + value);
+            else if (value != null)
+                jdata.put(key, "s:" + value);
+        }
+
+        JSONObject jreport = new JSONObject();
+        jreport.put("hook", args.getString("hook"));
+        jreport.put("packageName", args.getString("packageName"));
+        jreport.put("uid", args.getInt("uid"));
+        jreport.put("event", args.getString("event"));
+        jreport.put("time", args.getLong("time"));
+        jreport.put("data", jdata);
+        jreport.put("attempts", attempts);
+        return jreport;
+    }
+
+    private static Bundle fromJSON(JSONObject jreport) throws JSONException {
+        Bundle data = new Bundle();
+        JSONObject jdata = jreport.getJSONObject("data");
+        Iterator<String> keys = jdata.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            String value = jdata.getString(key);
+            String v = value.substring(2);
+            if (value.startsWith("i:"))
+                data.putInt(key, Integer.parseInt(v));
+            else if (value.startsWith("l:"))
+                data.putLong(key, Long.parseLong(v));
+            else if (value.startsWith("b:"))
+                data.putBoolean(key, Boolean.parseBoolean(v));
+            else
+                data.putString(key, v);
+        }
+
+        Bundle args = new Bundle();
+        args.putString("hook", jreport.getString("hook"));
+        args.putString("packageName", jreport.getString("packageName"));
+        args.putInt("uid", jreport.getInt("uid"));
+        args.putString("event", jreport.getString("event"));
+        args.putLong("time", jreport.getLong("time"));
+        args.putBundle("data", data);
+        return args;
+    }
+
+    private Bundle getUsage() {
+        int i = 0;
+        String[] hooks = new String[usage.size()];
+        long[] calls = new long[usage.size()];
+        long[] restricted = new long[usage.size()];
+        long[] errors = new long[usage.size()];
+        long[] duration = new long[usage.size()];
+        long[] durationMax = new long[usage.size()];
+        for (String hook : usage.keySet()) {
+            Usage counters = usage.get(hook);
+            hooks[i] = hook;
+            calls[i] = counters.calls;
+            restricted[i] = counters.restricted;
+            errors[i] = counters.errors;
+            duration[i] = counters.duration;
+            durationMax[i] = counters.durationMax;
+            i++;
+        }
+
+        Bundle args = new Bundle();
+        args.putString("packageName", packageName);
+        args.putInt("uid", uid);
+        args.putStringArray("hooks", hooks);
+        args.putLongArray("calls", calls);
+        args.putLongArray("restricted", restricted);
+        args.putLongArray("errors", errors);
+        args.putLongArray("duration", duration);
+        args.putLongArray("duration_max", durationMax);
+        return args;
+    }
+
+    private void putUsage(Bundle args) {
+        String[] hooks = args.getStringArray("hooks");
+        long[] calls = args.getLongArray("calls");
+        long[] restricted = args.getLongArray("restricted");
+        long[] errors = args.getLongArray("errors");
+        long[] duration = args.getLongArray("duration");
+        long[] durationMax = args.getLongArray("duration_max");
+        for (int i = 0; i < hooks.length; i++) {
+            Usage counters = usage.get(hooks[i]);
+            if (counters == null) {
+                counters = new Usage();
+                usage.put(hooks[i], counters);
+            }
+            counters.calls += calls[i];
+            counters.restricted += restricted[i];
+            counters.errors += errors[i];
+            counters.duration += duration[i];
+            counters.durationMax = Math.max(counters.durationMax, durationMax[i]);
+        }
+    }
+
+    // One daemon thread per process shared by all reporters
+    private static synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null)
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "XLua.Reporter");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        return scheduler;
+    }
+
+    private static class Usage {
+        long calls = 0;
+        long restricted = 0;
+        long errors = 0;
+        long duration = 0;
+        long durationMax = 0;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+    This file is part of XPrivacyLua.
+
+    XPrivacyLua is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    XPrivacyLua is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with XPrivacyLua.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2017-2018 Marcel Bokhorst (M66B)
+ */
+
+package eu.faircode.xlua;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+// Content-addressed cache of hook scripts in the storage of the hooked app
+class XScripts {
+    private final static String TAG = "XLua.Scripts";
+
+    private final static String cCacheName = "xlua_scripts";
+    private final static String cSuffix = ".lua";
+
+    private final File dir;
+
+    XScripts(Context context) {
+        this.dir = new File(context.getNoBackupFilesDir(), cCacheName);
+    }
+
+    String[] getCached() {
+        List<String> hashes = new ArrayList<>();
+        String[] names = dir.list();
+        if (names != null)
+            for (String name : names)
+                if (name.endsWith(cSuffix))
+                    hashes.add(name.substring(0, name.length() - cSuffix.length()));
+        return hashes.toArray(new String[0]);
+    }
+
+    // Links cached or fetched scripts to hooks received without script and drops hooks without script
+    void resolve(ContentResolver resolver, List<XHook> hooks) {
+        Set<String> used = new HashSet<>();
+        List<String> missing = new ArrayList<>();
+        for (XHook hook : hooks) {
+            String hash = hook.getLuaHash();
+            if (hash == null)
+                continue;
+            used.add(hash);
+
+            if (hook.getLuaScript() == null) {
+                String script = get(hash);
+                if (script == null) {
+                    if (!missing.contains(hash))
+                        missing.add(hash);
+                } else
+                    hook.setLuaScript(script);
+            } else
+                put(hash, hook.getLuaScript());
+        }
+
+        if (missing.size() > 0)
+            try {
+                Bundle args = new Bundle();
+                args.putStringArray("hashes", missing.toArray(new String[0]));
+                Bundle result = resolver.call(XProvider.URI, "xlua", "getScripts", args);
+                String[] scripts = (result == null ? null : result.getStringArray("scripts"));
+                if (scripts != null)
+                    for (int i = 0; i < scripts.length && i < missing.size(); i++)
+                        if (scripts[i] != null) {
+                            put(missing.get(i), scripts[i]);
+                            for (XHook hook : hooks)
+                                if (missing.get(i).equals(hook.getLuaHash()))
+                                    hook.setLuaScript(scripts[i]);
+                        }
+                Log.i(TAG, "Fetched scripts=" + missing.size());
+            } catch (Throwable ex) {
+                Log.e(TAG, Log.getStackTraceString(ex));
+            }
+
+        for (Iterator<XHook> it = hooks.iterator(); it.hasNext(); ) {
+            XHook hook = it.next();
+            if (hook.getLuaScript() == null) {
+                Log.w(TAG, "Script missing for " + hook.getId());
+                it.remove();
+            }
+        }
+
+        // Scripts of hooks no longer assigned
+        String[] names = dir.list();
+        if (names != null)
+            for (String name : names)
+                if (!name.endsWith(cSuffix) ||
+                        !used.contains(name.substring(0, name.length() - cSuffix.length())))
+                    new File(dir, name).delete();
+    }
+
+    private String get(String hash) {
+        File file = new File(dir, hash + cSuffix);
+        InputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            byte[] bytes = new byte[(int) file.length()];
+            int read = 0;
+            while (read < bytes.length) {
+                int n = is.read(bytes, read, bytes.length - read);
+                if (n < 0)
+                    throw new IOException("Truncated " + file);
+                read += n;
+            }
+            // The app can write its own storage, so only trust content matching the name
+            String script = new String(bytes, StandardCharsets.UTF_8);
+            if (!hash.equals(XHook.getHash(script)))
+                throw new IOException("Hash mismatch " + file);
+            return script;
+        } catch (FileNotFoundException ignored) {
+            return null;
+        } catch (Throwable ex) {
+            Log.e(TAG, Log.getStackTraceString(ex));
+            file.delete();
+            return null;
+        } finally {
+            if (is != null)
+                try {
+                    is.close();
+                } catch (IOException ignored) {
+                }
+        }
+    }
+
+    private void put(String hash, String script) {
+        File file = new File(dir, hash + cSuffix);
+        if (file.exists())
+            return;
+
+        dir.mkdirs();
+        File tmp = new File(dir, hash + ".tmp");
+        OutputStream os = null;
+        try {
+            os = new FileOutputStream(tmp);
+            os.write(script.getBytes(StandardCharsets.UTF_8));
+            os.close();
+            os = null;
+            if (!tmp.renameTo(file))
+                throw new IOException("Rename failed " + tmp);
+        } catch (Throwable ex) {
+            Log.e(TAG, Log.getStackTraceString(ex));
+            tmp.delete();
+        } finally {
+            if (os != null)
+                try {
+                    os.close();
+                } catch (IOException ignored) {
+                }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+    This file is part of XPrivacyLua.
+
+    XPrivacyLua is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    XPrivacyLua is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with XPrivacyLua.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2017-2018 Marcel Bokhorst (M66B)
+ */
+
+package eu.faircode.xlua;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Database of one Android user, with its own writer lock, compiled statements and assignment index
+// The database of the owner also holds the hook definitions
+class XShard {
+    private final static String TAG = "XLua.Shard";
+
+    final int userid;
+    final File file;
+
+    // Readers rely on write ahead logging and take no lock, writers are serialized
+    // Readers hold a reference instead, so that a deleted database is closed after the last reader
+    final SQLiteDatabase db;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, SQLiteStatement> statements = new HashMap<>();
+    private int readers = 0;
+    private boolean closed = false;
+
+    // Values are immutable and replaced while holding the lock
+    volatile Map<String, Set<String>> assignments = null;
+
+    // Only used by the writer thread
+    long lastHistoryCleanup = 0;
+
+    final AtomicLong locked = new AtomicLong();
+    final AtomicLong contended = new AtomicLong();
+    final AtomicLong waited = new AtomicLong(); // milliseconds
+
+    // Time spent in write transactions
+    final AtomicLong transactions = new AtomicLong();
+    final AtomicLong sqlite = new AtomicLong(); // microseconds
+
+    XShard(int userid, File file, SQLiteDatabase db) {
+        this.userid = userid;
+        this.file = file;
+        this.db = db;
+    }
+
+    // Fails when the database was deleted, writers holding on to it cannot use it anymore
+    void lock() {
+        // Count how often and how long writers wait for each other
+        if (!lock.tryLock()) {
+            long start = SystemClock.elapsedRealtime();
+            lock.lock();
+            contended.incrementAndGet();
+            waited.addAndGet(SystemClock.elapsedRealtime() - start);
+        }
+        synchronized (this) {
+            if (closed) {
+                lock.unlock();
+                throw new IllegalStateException("Database deleted " + this);
+            }
+        }
+        long count = locked.incrementAndGet();
+        if (count % 1000 == 0)
+            Log.i(TAG, "Database user=" + userid + " locked=" + count +
+                    " contended=" + contended.get() + " waited=" + waited.get() + " ms");
+    }
+
+    void unlock() {
+        lock.unlock();
+    }
+
+    // Statements are compiled once and reused; writers hold the lock while binding
+    SQLiteStatement getStatement(String sql) {
+        synchronized (statements) {
+            SQLiteStatement statement = statements.get(sql);
+            if (statement == null) {
+                statement = db.compileStatement(sql);
+                statements.put(sql, statement);
+            }
+            return statement;
+        }
+    }
+
+    // Fails when the database was deleted
+    synchronized void acquire() {
+        if (closed)
+            throw new IllegalStateException("Database deleted " + this);
+        readers++;
+    }
+
+    synchronized void release() {
+        readers--;
+        if (closed && readers == 0)
+            close();
+    }
+
+    // Removing a user is deleting its files, the database is closed when no reader uses it anymore
+    // The shard should not be reachable for new callers anymore
+    void delete() {
+        lock();
+        try {
+            synchronized (this) {
+                closed = true;
+                if (readers == 0)
+                    close();
+            }
+            boolean deleted = SQLiteDatabase.deleteDatabase(file);
+            Log.i(TAG, "Deleted user=" + userid + " file=" + file + " deleted=" + deleted);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Without readers and writers only, like when opening failed or after the last reader of a deleted database
+    void close() {
+        synchronized (statements) {
+            for (SQLiteStatement statement : statements.values())
+                statement.close();
+            statements.clear();
+        }
+        db.close();
+    }
+
+    @Override
+    public String toString() {
+        return "user=" + userid + " file=" + file;
+    }
+}
@@ -0,0 +1,204 @@
+/*
+    This file is part of XPrivacyLua.
+
+    XPrivacyLua is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    XPrivacyLua is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with XPrivacyLua.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2017-2018 Marcel Bokhorst (M66B)
+ */
+
+package eu.faircode.xlua;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Immutable per user configuration snapshot in shared memory, mapped read-only by apps
+// Layout: index length (int), index row, hook rows
+// Index row: generation, hooks (offset, length), global settings
+// Hook rows are self-contained, so apps decode only the hooks assigned to them
+// Assignments are private to each app, so they are sent in the bundle as indexes into the hook rows
+@TargetApi(Build.VERSION_CODES.O_MR1)
+class XSnapshot {
+    private final static String TAG = "XLua.Snapshot";
+
+    private final static Map<Integer, Long> generations = new HashMap<>();
+    private final static Map<Integer, SharedMemory> memories = new HashMap<>();
+    private final static Map<Integer, SharedMemory> replaced = new HashMap<>();
+    private final static Map<Integer, Map<String, Integer>> indexes = new HashMap<>();
+
+    // Adds the snapshot of the user for the generation, building it if needed, and the hooks of the app
+    // A replaced snapshot may still be in flight to an app, so it is closed when it is replaced again
+    static void attach(
+            Bundle result, String packageName, int uid, long generation,
+            Map<String, XHook> hooks, Map<String, String> settings, Set<String> assigned)
+            throws ErrnoException {
+        int userid = Util.getUserId(uid);
+        SharedMemory memory;
+        Map<String, Integer> index;
+        synchronized (memories) {
+            Long current = generations.get(userid);
+            boolean valid = (current != null && current == generation);
+            memory = (valid ? memories.get(userid) : null);
+            index = (valid ? indexes.get(userid) : null);
+        }
+
+        if (memory == null || index == null) {
+            List<XHook> all = new ArrayList<>(hooks.values());
+            Collections.sort(all, new Comparator<XHook>() {
+                @Override
+                public int compare(XHook h1, XHook h2) {
+                    return h1.getId().compareTo(h2.getId());
+                }
+            });
+
+            index = new HashMap<>();
+            for (XHook hook : all)
+                index.put(hook.getId(), index.size());
+
+            memory = build(userid, generation, all, settings);
+            synchronized (memories) {
+                generations.put(userid, generation);
+                SharedMemory previous = memories.put(userid, memory);
+                indexes.put(userid, index);
+                SharedMemory expired = (previous == null ? null : replaced.put(userid, previous));
+                if (expired != null)
+                    expired.close();
+            }
+        }
+
+        List<Integer> selected = new ArrayList<>();
+        if (assigned != null)
+            for (String hookid : assigned) {
+                Integer i = index.get(hookid);
+                XHook hook = hooks.get(hookid);
+                if (i != null && hook != null && hook.isAvailable(packageName))
+                    selected.add(i);
+            }
+        int[] selection = new int[selected.size()];
+        for (int i = 0; i < selection.length; i++)
+            selection[i] = selected.get(i);
+
+        result.putParcelable("snapshot", memory);
+        result.putIntArray("assigned", selection);
+    }
+
+    private static SharedMemory build(
+            int userid, long generation, List<XHook> hooks, Map<String, String> settings)
+            throws ErrnoException {
+        // Encode hooks
+        List<byte[]> rows = new ArrayList<>();
+        for (XHook hook : hooks) {
+            XBinary.Writer writer = new XBinary.Writer();
+            hook.toBinary(writer);
+            rows.add(writer.row());
+        }
+
+        // Encode index
+        XBinary.Writer writer = new XBinary.Writer();
+        writer.writeLong(generation);
+
+        int offset = 0;
+        writer.writeInt(rows.size());
+        for (byte[] row : rows) {
+            writer.writeInt(offset);
+            writer.writeInt(row.length);
+            offset += row.length;
+        }
+
+        writer.writeInt(settings.size());
+        for (String name : settings.keySet()) {
+            writer.writeString(name);
+            writer.writeString(settings.get(name));
+        }
+        byte[] header = writer.row();
+
+        // Write region
+        SharedMemory memory = SharedMemory.create("xlua_" + userid, 4 + header.length + offset);
+        ByteBuffer map = memory.mapReadWrite();
+        try {
+            map.putInt(header.length);
+            map.put(header);
+            for (byte[] row : rows)
+                map.put(row);
+        } finally {
+            SharedMemory.unmap(map);
+        }
+        memory.setProtect(OsConstants.PROT_READ);
+
+        Log.i(TAG, "Built user=" + userid + " generation=" + generation +
+                " hooks=" + rows.size() + " size=" + memory.getSize());
+        return memory;
+    }
+
+    static boolean has(Bundle bootstrap) {
+        return (bootstrap != null && bootstrap.containsKey("snapshot"));
+    }
+
+    // Returns the generation of the snapshot
+    static long read(Bundle bootstrap, List<XHook> hooks, Map<String, String> settings)
+            throws ErrnoException {
+        SharedMemory memory = bootstrap.getParcelable("snapshot");
+        int[] assigned = bootstrap.getIntArray("assigned");
+        ByteBuffer map = memory.mapReadOnly();
+        try {
+            int length = map.getInt(0);
+            int data = 4 + length;
+            XBinary.Reader reader = new XBinary.Reader().row(slice(map, 4, length));
+
+            long generation = reader.readLong();
+
+            int count = reader.readInt();
+            int[] offsets = new int[count];
+            int[] lengths = new int[count];
+            for (int i = 0; i < count; i++) {
+                offsets[i] = reader.readInt();
+                lengths[i] = reader.readInt();
+            }
+
+            int scount = reader.readInt();
+            for (int i = 0; i < scount; i++)
+                settings.put(reader.readString(), reader.readString());
+
+            if (assigned != null)
+                for (int i : assigned)
+                    hooks.add(XHook.fromBinary(
+                            new XBinary.Reader().row(slice(map, data + offsets[i], lengths[i]))));
+
+            return generation;
+        } finally {
+            SharedMemory.unmap(map);
+            memory.close();
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer map, int offset, int length) {
+        ByteBuffer slice = map.duplicate();
+        slice.position(offset);
+        slice.limit(offset + length);
+        return slice.slice();
+    }
+}
@@ -0,0 +1,170 @@
+/*
+    This file is part of XPrivacyLua.
+
+    XPrivacyLua is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    XPrivacyLua is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with XPrivacyLua.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2017-2018 Marcel Bokhorst (M66B)
+ */
+
+package eu.faircode.xlua;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Counters of the provider since it was started, kept in memory only
+// Methods are recorded as "call <name>" with estimated payloads in bytes and as "query <name>" with payloads in rows
+// Only methods known to the provider are recorded, so the number of methods is bounded
+class XStats {
+    // Upper bounds of the latency buckets, the last bucket has no bound
+    final static long[] cBounds = new long[]{1, 2, 5, 10, 20, 50, 100, 200, 500, 1000}; // milliseconds
+
+    private final static long started = SystemClock.elapsedRealtime();
+    private final static Map<String, Method> methods = new ConcurrentHashMap<>();
+    private final static Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+
+    static void record(String name, long elapsed, boolean failed, long payload) {
+        Method method = methods.get(name);
+        if (method == null) {
+            synchronized (methods) {
+                method = methods.get(name);
+                if (method == null) {
+                    method = new Method();
+                    methods.put(name, method);
+                }
+            }
+        }
+
+        long us = elapsed / 1000;
+        method.calls.incrementAndGet();
+        if (failed)
+            method.errors.incrementAndGet();
+        method.elapsed.addAndGet(us);
+        method.payload.addAndGet(payload);
+
+        long max = method.max.get();
+        while (us > max && !method.max.compareAndSet(max, us))
+            max = method.max.get();
+
+        int bucket = 0;
+        while (bucket < cBounds.length && us > cBounds[bucket] * 1000)
+            bucket++;
+        method.histogram.incrementAndGet(bucket);
+    }
+
+    // Named counter of code outside the provider methods, like the settings provider hooks
+    // Hot paths should keep the returned counter instead of looking it up each time
+    static AtomicLong getCounter(String name) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            synchronized (counters) {
+                counter = counters.get(name);
+                if (counter == null) {
+                    counter = new AtomicLong();
+                    counters.put(name, counter);
+                }
+            }
+        }
+        return counter;
+    }
+
+    // Parceling the result again would copy it and duplicate file descriptors on every call
+    static long getSize(Bundle bundle) {
+        long size = 0;
+        for (String key : bundle.keySet()) {
+            size += 2 * key.length();
+            Object value = bundle.get(key);
+            if (value instanceof String)
+                size += 2 * ((String) value).length();
+            else if (value instanceof String[]) {
+                for (String element : (String[]) value)
+                    size += (element == null ? 4 : 2 * element.length());
+            } else if (value instanceof byte[])
+                size += ((byte[]) value).length;
+            else if (value instanceof int[])
+                size += 4 * ((int[]) value).length;
+            else if (value instanceof long[])
+                size += 8 * ((long[]) value).length;
+            else if (value instanceof Bundle)
+                size += getSize((Bundle) value);
+            else
+                size += 8;
+        }
+        return size;
+    }
+
+    // Layout: methods, per method calls, errors, elapsed (microseconds), max (microseconds), payload,
+    // histogram with bounds.length + 1 buckets per method, counter names and values
+    static Bundle get(Map<String, Long> extra) {
+        Map<String, Method> sorted = new TreeMap<>(methods);
+        int count = sorted.size();
+        int buckets = cBounds.length + 1;
+
+        long[] calls = new long[count];
+        long[] errors = new long[count];
+        long[] elapsed = new long[count];
+        long[] max = new long[count];
+        long[] payload = new long[count];
+        long[] histogram = new long[count * buckets];
+        int i = 0;
+        for (Method method : sorted.values()) {
+            calls[i] = method.calls.get();
+            errors[i] = method.errors.get();
+            elapsed[i] = method.elapsed.get();
+            max[i] = method.max.get();
+            payload[i] = method.payload.get();
+            for (int b = 0; b < buckets; b++)
+                histogram[i * buckets + b] = method.histogram.get(b);
+            i++;
+        }
+
+        Map<String, Long> all = new TreeMap<>(extra);
+        for (String name : counters.keySet())
+            all.put(name, counters.get(name).get());
+        List<String> names = new ArrayList<>(all.keySet());
+        long[] values = new long[names.size()];
+        for (int c = 0; c < values.length; c++)
+            values[c] = all.get(names.get(c));
+
+        Bundle result = new Bundle();
+        result.putLong("uptime", SystemClock.elapsedRealtime() - started);
+        result.putLongArray("bounds", cBounds);
+        result.putStringArray("methods", sorted.keySet().toArray(new String[0]));
+        result.putLongArray("calls", calls);
+        result.putLongArray("errors", errors);
+        result.putLongArray("elapsed", elapsed);
+        result.putLongArray("max", max);
+        result.putLongArray("payload", payload);
+        result.putLongArray("histogram", histogram);
+        result.putStringArray("counters", names.toArray(new String[0]));
+        result.putLongArray("values", values);
+        return result;
+    }
+
+    private static class Method {
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong elapsed = new AtomicLong(); // microseconds
+        final AtomicLong max = new AtomicLong(); // microseconds
+        final AtomicLong payload = new AtomicLong();
+        final AtomicLongArray histogram = new AtomicLongArray(cBounds.length + 1);
+    }
+}
@@ -28,6 +28,7 @@ import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Process;
 import android.os.SystemClock;
@@ -52,12 +53,10 @@ import java.io.InputStream;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 import de.robv.android.xposed.IXposedHookLoadPackage;
 import de.robv.android.xposed.IXposedHookZygoteInit;
@@ -69,6 +68,7 @@ public class Xposed implements IXposedHookZygoteInit, IXposedHookLoadPackage {
     private static final String TAG = "XLua.Xposed";
 
     private static int version = -1;
+    private static volatile Context settingsContext = null;
 
     public void initZygote(final IXposedHookZygoteInit.StartupParam startupParam) throws Throwable {
         Log.i(TAG, "initZygote system=" + startupParam.startsSystemServer + " debug=" + BuildConfig.DEBUG);
@@ -128,6 +128,7 @@ public class Xposed implements IXposedHookZygoteInit, IXposedHookLoadPackage {
                         Log.i(TAG, "Registering package listener user=" + userid);
                         IntentFilter ifPackageAdd = new IntentFilter();
                         ifPackageAdd.addAction(Intent.ACTION_PACKAGE_ADDED);
+                        ifPackageAdd.addAction(Intent.ACTION_PACKAGE_CHANGED);
                         ifPackageAdd.addAction(Intent.ACTION_PACKAGE_FULLY_REMOVED);
                         ifPackageAdd.addDataScheme("package");
                         Util.createContextForUser(context, userid).registerReceiver(new ReceiverPackage(), ifPackageAdd);
@@ -144,35 +145,50 @@ public class Xposed implements IXposedHookZygoteInit, IXposedHookLoadPackage {
         // https://android.googlesource.com/platform/frameworks/base/+/master/packages/SettingsProvider/src/com/android/providers/settings/SettingsProvider.java
         Class<?> clsSet = Class.forName("com.android.providers.settings.SettingsProvider", false, lpparam.classLoader);
 
+        // Every settings call and query of every app passes here, so resolve everything once
+        final Method mGetContext = clsSet.getMethod("getContext");
+        final Map<String, String> routes = new HashMap<>();
+        for (String name : XProvider.cQueryMethods)
+            routes.put("xlua." + name, name);
+
+        // Time spent before handing over to the provider, or to the settings provider for other traffic
+        final AtomicLong routed = XStats.getCounter("settings.xlua");
+        final AtomicLong routedTime = XStats.getCounter("settings.xlua_ns");
+        final AtomicLong passed = XStats.getCounter("settings.other");
+        final AtomicLong passedTime = XStats.getCounter("settings.other_ns");
+
         // Bundle call(String method, String arg, Bundle extras)
         Method mCall = clsSet.getMethod("call", String.class, String.class, Bundle.class);
         XposedBridge.hookMethod(mCall, new XC_MethodHook() {
             @Override
             protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
+                long start = System.nanoTime();
                 try {
                     String method = (String) param.args[0];
                     String arg = (String) param.args[1];
                     Bundle extras = (Bundle) param.args[2];
 
-                    if ("xlua".equals(method))
-                        if ("getVersion".equals(arg)) {
-                            Bundle result = new Bundle();
-                            result.putInt("version", version);
-                            param.setResult(result);
-                        } else
-                            try {
-                                Method mGetContext = param.thisObject.getClass().getMethod("getContext");
-                                Context context = (Context) mGetContext.invoke(param.thisObject);
-                                getModuleVersion(context);
-                                param.setResult(XProvider.call(context, arg, extras));
-                            } catch (IllegalArgumentException ex) {
-                                Log.i(TAG, "Error: " + ex.getMessage());
-                                param.setThrowable(ex);
-                            } catch (Throwable ex) {
-                                Log.e(TAG, Log.getStackTraceString(ex));
-                                XposedBridge.log(ex);
-                                param.setResult(null);
-                            }
+                    if (!"xlua".equals(method)) {
+                        passed.incrementAndGet();
+                        passedTime.addAndGet(System.nanoTime() - start);
+                    } else if ("getVersion".equals(arg)) {
+                        Bundle result = new Bundle();
+                        result.putInt("version", version);
+                        param.setResult(result);
+                    } else
+                        try {
+                            Context context = getSettingsContext(mGetContext, param.thisObject);
+                            routed.incrementAndGet();
+                            routedTime.addAndGet(System.nanoTime() - start);
+                            param.setResult(XProvider.call(context, arg, extras));
+                        } catch (IllegalArgumentException ex) {
+                            Log.i(TAG, "Error: " + ex.getMessage());
+                            param.setThrowable(ex);
+                        } catch (Throwable ex) {
+                            Log.e(TAG, Log.getStackTraceString(ex));
+                            XposedBridge.log(ex);
+                            param.setResult(null);
+                        }
                 } catch (Throwable ex) {
                     Log.e(TAG, Log.getStackTraceString(ex));
                     XposedBridge.log(ex);
@@ -185,21 +201,32 @@ public class Xposed implements IXposedHookZygoteInit, IXposedHookLoadPackage {
         XposedBridge.hookMethod(mQuery, new XC_MethodHook() {
             @Override
             protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
+                long start = System.nanoTime();
                 try {
                     String[] projection = (String[]) param.args[1];
                     String[] selection = (String[]) param.args[3];
                     if (projection != null && projection.length > 0 &&
                             projection[0] != null && projection[0].startsWith("xlua.")) {
                         try {
-                            Method mGetContext = param.thisObject.getClass().getMethod("getContext");
-                            Context context = (Context) mGetContext.invoke(param.thisObject);
-                            getModuleVersion(context);
-                            param.setResult(XProvider.query(context, projection[0].split("\\.")[1], selection));
+                            String method = routes.get(projection[0]);
+                            if (method == null) {
+                                Log.w(TAG, "Unknown query " + projection[0]);
+                                param.setResult(null);
+                                return;
+                            }
+                            Context context = getSettingsContext(mGetContext, param.thisObject);
+                            boolean binary = (projection.length > 1 && XBinary.cColumn.equals(projection[1]));
+                            routed.incrementAndGet();
+                            routedTime.addAndGet(System.nanoTime() - start);
+                            param.setResult(XProvider.query(context, method, selection, binary));
                         } catch (Throwable ex) {
                             Log.e(TAG, Log.getStackTraceString(ex));
                             XposedBridge.log(ex);
                             param.setResult(null);
                         }
+                    } else {
+                        passed.incrementAndGet();
+                        passedTime.addAndGet(System.nanoTime() - start);
                     }
                 } catch (Throwable ex) {
                     Log.e(TAG, Log.getStackTraceString(ex));
@@ -209,13 +236,25 @@ public class Xposed implements IXposedHookZygoteInit, IXposedHookLoadPackage {
         });
     }
 
+    // There is one settings provider per process, its context does not change once attached
+    private static Context getSettingsContext(Method mGetContext, Object provider) throws Throwable {
+        Context context = settingsContext;
+        if (context == null) {
+            context = (Context) mGetContext.invoke(provider);
+            if (context == null)
+                throw new IllegalStateException("Settings provider not attached");
+            getModuleVersion(context);
+            settingsContext = context;
+        }
+        return context;
+    }
+
     private void hookApplication(final XC_LoadPackage.LoadPackageParam lpparam) throws Throwable {
         final int uid = Process.myUid();
         Class<?> at = Class.forName("android.app.LoadedApk", false, lpparam.classLoader);
         XposedBridge.hookAllMethods(at, "makeApplication", new XC_MethodHook() {
             private boolean made = false;
-            private Timer timer = null;
-            private final Map<String, Map<String, Bundle>> queue = new HashMap<>();
+            private XReporter reporter = null;
 
             @Override
             protected void afterHookedMethod(MethodHookParam param) throws Throwable {
@@ -235,51 +274,91 @@ public class Xposed implements IXposedHookZygoteInit, IXposedHookLoadPackage {
                             return;
                         }
 
-                        // Get hooks
                         List<XHook> hooks = new ArrayList<>();
-                        Cursor hcursor = null;
-                        try {
-                            hcursor = resolver
-                                    .query(XProvider.URI, new String[]{"xlua.getAssignedHooks"},
-                                            null, new String[]{lpparam.packageName, Integer.toString(uid)},
-                                            null);
-                            while (hcursor != null && hcursor.moveToNext())
-                                hooks.add(XHook.fromJSON(hcursor.getString(0)));
-                        } finally {
-                            if (hcursor != null)
-                                hcursor.close();
-                        }
-
                         Map<String, String> settings = new HashMap<>();
 
-                        // Get global settings
-                        Cursor scursor1 = null;
-                        try {
-                            scursor1 = resolver
-                                    .query(XProvider.URI, new String[]{"xlua.getSettings"},
-                                            null, new String[]{"global", Integer.toString(uid)},
-                                            null);
-                            while (scursor1 != null && scursor1.moveToNext())
-                                settings.put(scursor1.getString(0), scursor1.getString(1));
-                        } finally {
-                            if (scursor1 != null)
-                                scursor1.close();
-                        }
+                        // Get hooks and settings in one call
+                        XScripts scripts = new XScripts(app);
+                        Bundle args = new Bundle();
+                        args.putString("packageName", lpparam.packageName);
+                        args.putInt("uid", uid);
+                        args.putStringArray("cached", scripts.getCached());
+                        args.putBoolean("snapshot", Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1);
+                        Bundle bootstrap = resolver.call(XProvider.URI, "xlua", "getBootstrap", args);
+                        boolean shared = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1 &&
+                                XSnapshot.has(bootstrap));
+                        if (shared || (bootstrap != null && bootstrap.containsKey("hooks"))) {
+                            // Hooks are installed once per process, the generation is only logged
+                            long generation;
+                            if (shared && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1)
+                                generation = XSnapshot.read(bootstrap, hooks, settings);
+                            else {
+                                XBinary.Reader reader = new XBinary.Reader().row(bootstrap.getByteArray("hooks"));
+                                int count = reader.readInt();
+                                for (int i = 0; i < count; i++)
+                                    hooks.add(XHook.fromBinary(reader));
+                                scripts.resolve(resolver, hooks);
+                                generation = bootstrap.getLong("generation");
+                            }
 
-                        // Get package settings
-                        Cursor scursor2 = null;
-                        try {
-                            scursor2 = resolver
-                                    .query(XProvider.URI, new String[]{"xlua.getSettings"},
-                                            null, new String[]{lpparam.packageName, Integer.toString(uid)},
-                                            null);
-                            while (scursor2 != null && scursor2.moveToNext())
-                                settings.put(scursor2.getString(0), scursor2.getString(1));
-                        } finally {
-                            if (scursor2 != null)
-                                scursor2.close();
+                            String[] names = bootstrap.getStringArray("names");
+                            String[] values = bootstrap.getStringArray("values");
+                            for (int i = 0; i < names.length; i++)
+                                settings.put(names[i], values[i]);
+
+                            Log.i(TAG, "Bootstrap " + lpparam.packageName + ":" + uid +
+                                    " hooks=" + hooks.size() + " settings=" + settings.size() +
+                                    " generation=" + generation + " shared=" + shared);
+                        } else {
+                            // Older provider
+                            Cursor hcursor = null;
+                            try {
+                                hcursor = resolver
+                                        .query(XProvider.URI, new String[]{"xlua.getAssignedHooks", XBinary.cColumn},
+                                                null, new String[]{lpparam.packageName, Integer.toString(uid)},
+                                                null);
+                                boolean binary = XBinary.isBinary(hcursor);
+                                XBinary.Reader reader = new XBinary.Reader();
+                                while (hcursor != null && hcursor.moveToNext())
+                                    if (binary)
+                                        hooks.add(XHook.fromBinary(reader.row(hcursor.getBlob(0))));
+                                    else
+                                        hooks.add(XHook.fromJSON(hcursor.getString(0)));
+                            } finally {
+                                if (hcursor != null)
+                                    hcursor.close();
+                            }
+
+                            // Get global settings
+                            Cursor scursor1 = null;
+                            try {
+                                scursor1 = resolver
+                                        .query(XProvider.URI, new String[]{"xlua.getSettings"},
+                                                null, new String[]{"global", Integer.toString(uid)},
+                                                null);
+                                while (scursor1 != null && scursor1.moveToNext())
+                                    settings.put(scursor1.getString(0), scursor1.getString(1));
+                            } finally {
+                                if (scursor1 != null)
+                                    scursor1.close();
+                            }
+
+                            // Get package settings
+                            Cursor scursor2 = null;
+                            try {
+                                scursor2 = resolver
+                                        .query(XProvider.URI, new String[]{"xlua.getSettings"},
+                                                null, new String[]{lpparam.packageName, Integer.toString(uid)},
+                                                null);
+                                while (scursor2 != null && scursor2.moveToNext())
+                                    settings.put(scursor2.getString(0), scursor2.getString(1));
+                            } finally {
+                                if (scursor2 != null)
+                                    scursor2.close();
+                            }
                         }
 
+                        reporter = new XReporter(app, lpparam.packageName, uid);
                         hookPackage(app, lpparam, uid, hooks, settings);
                     }
                 } catch (Throwable ex) {
@@ -346,6 +425,7 @@ public class Xposed implements IXposedHookZygoteInit, IXposedHookLoadPackage {
                             }
 
                             // Initialize Lua runtime
+                            long run = SystemClock.elapsedRealtime();
                             Globals globals = getGlobals(lpparam, uid, hook);
                             LuaClosure closure = new LuaClosure(compiledScript, globals);
                             closure.call();
@@ -367,11 +447,12 @@ public class Xposed implements IXposedHookZygoteInit, IXposedHookLoadPackage {
 
                             // Report use
                             boolean restricted = result.arg1().checkboolean();
+                            reporter.count(hook.getId(), restricted, false, SystemClock.elapsedRealtime() - run);
                             if (restricted && hook.doUsage()) {
                                 Bundle data = new Bundle();
                                 data.putString("function", "after");
                                 data.putInt("restricted", restricted ? 1 : 0);
-                                report(context, hook.getId(), lpparam.packageName, uid, "use", data);
+                                reporter.report(hook.getId(), "use", data);
                             }
                         } else {
                             // Get method
@@ -404,9 +485,8 @@ public class Xposed implements IXposedHookZygoteInit, IXposedHookLoadPackage {
 
                                 // Execute hook
                                 private void execute(MethodHookParam param, String function) {
+                                    long run = SystemClock.elapsedRealtime();
                                     try {
-                                        long run = SystemClock.elapsedRealtime();
-
                                         // Initialize Lua runtime
                                         Globals globals = getGlobals(lpparam, uid, hook);
                                         LuaClosure closure = new LuaClosure(compiledScript, globals);
@@ -430,21 +510,24 @@ public class Xposed implements IXposedHookZygoteInit, IXposedHookLoadPackage {
 
                                         // Report use
                                         boolean restricted = result.arg1().checkboolean();
+                                        long duration = SystemClock.elapsedRealtime() - run;
+                                        reporter.count(hook.getId(), restricted, false, duration);
                                         if (restricted) {
                                             Bundle data = new Bundle();
                                             data.putString("function", function);
                                             data.putInt("restricted", restricted ? 1 : 0);
-                                            data.putLong("duration", SystemClock.elapsedRealtime() - run);
-                                            report(context, hook.getId(), lpparam.packageName, uid, "use", data);
+                                            data.putLong("duration", duration);
+                                            reporter.report(hook.getId(), "use", data);
                                         }
                                     } catch (Throwable ex) {
                                         Log.e(TAG, Log.getStackTraceString(ex));
+                                        reporter.count(hook.getId(), false, true, SystemClock.elapsedRealtime() - run);
 
                                         // Report use error
                                         Bundle data = new Bundle();
                                         data.putString("function", function);
                                         data.putString("exception", ex instanceof LuaError ? ex.getMessage() : Log.getStackTraceString(ex));
-                                        report(context, hook.getId(), lpparam.packageName, uid, "use", data);
+                                        reporter.report(hook.getId(), "use", data);
                                     }
                                 }
                             });
@@ -454,7 +537,7 @@ public class Xposed implements IXposedHookZygoteInit, IXposedHookLoadPackage {
                         if (BuildConfig.DEBUG) {
                             Bundle data = new Bundle();
                             data.putLong("duration", SystemClock.elapsedRealtime() - install);
-                            report(context, hook.getId(), lpparam.packageName, uid, "install", data);
+                            reporter.report(hook.getId(), "install", data);
                         }
                     } catch (Throwable ex) {
                         Log.e(TAG, Log.getStackTraceString(ex));
@@ -462,46 +545,8 @@ public class Xposed implements IXposedHookZygoteInit, IXposedHookLoadPackage {
                         // Report install error
                         Bundle data = new Bundle();
                         data.putString("exception", ex instanceof LuaError ? ex.getMessage() : Log.getStackTraceString(ex));
-                        report(context, hook.getId(), lpparam.packageName, uid, "install", data);
-                    }
-            }
-
-            private void report(final Context context, String hook, final String packageName, final int uid, String event, Bundle data) {
-                Bundle args = new Bundle();
-                args.putString("hook", hook);
-                args.putString("packageName", packageName);
-                args.putInt("uid", uid);
-                args.putString("event", event);
-                args.putLong("time", new Date().getTime());
-                args.putBundle("data", data);
-
-                synchronized (queue) {
-                    if (!queue.containsKey(event))
-                        queue.put(event, new HashMap<String, Bundle>());
-                    queue.get(event).put(hook, args);
-
-                    if (timer == null) {
-                        timer = new Timer();
-                        timer.schedule(new TimerTask() {
-                            public void run() {
-                                Log.i(TAG, "Processing event queue package=" + packageName + ":" + uid);
-
-                                List<Bundle> work = new ArrayList<>();
-                                synchronized (queue) {
-                                    for (String event : queue.keySet())
-                                        for (String hook : queue.get(event).keySet())
-                                            work.add(queue.get(event).get(hook));
-                                    queue.clear();
-                                    timer = null;
-                                }
-
-                                for (Bundle args : work)
-                                    context.getContentResolver()
-                                            .call(XProvider.URI, "xlua", "report", args);
-                            }
-                        }, 1000);
+                        reporter.report(hook.getId(), "install", data);
                     }
-                }
             }
         });
     }